@@ -0,0 +1,400 @@
+package jenkins.plugins.testdroid;
+
+import com.testdroid.api.APIClient;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reserves batches of devices outside of builds, for example for exploratory load runs.
+ * <p/>
+ * Every device in a batch is provisioned in parallel exactly as for a build: searched for, flashed if needed and a
+ * session started, with sessions kept alive by {@link SessionLeaseRenewer} until the batch is released or the session
+ * timeout is reached. Flashes are accounted to a single job in the {@link FlashScheduler}, so a large batch shares flash
+ * slots fairly with builds instead of taking them all. Device data and flash logs are written to
+ * testdroid-batches/{batch ID} in the Jenkins home directory, and deleted once the batch is released or expires.
+ */
+public class DeviceBatchManager {
+
+    private static final Logger LOGGER = Logger.getLogger(DeviceBatchManager.class.getName());
+
+    private static final DeviceBatchManager INSTANCE = new DeviceBatchManager();
+
+    //job name used for flash scheduling and the provisioning report
+    final static String BATCH_JOB = "Testdroid batch reservations";
+
+    private final static String BATCHES_DIR = "testdroid-batches";
+
+    private final static int MAX_BATCH_SIZE = 50;
+
+    private final static int EXPIRY_CHECK_INTERVAL = 60*1000;  //1min
+
+    //maximum concurrent device reservations across all batches
+    private final static int PROVISIONER_THREADS = 20;
+    //maximum concurrent device releases, kept apart so releases don't queue behind slow reservations
+    private final static int RELEASER_THREADS = 10;
+
+    private static final ExecutorService PROVISIONER = Executors.newFixedThreadPool(PROVISIONER_THREADS,
+            new NamingThreadFactory(new DaemonThreadFactory(), "Testdroid batch provisioner"));
+
+    private static final ExecutorService RELEASER = Executors.newFixedThreadPool(RELEASER_THREADS,
+            new NamingThreadFactory(new DaemonThreadFactory(), "Testdroid batch releaser"));
+
+    private final Map<String, Batch> batches = new LinkedHashMap<String, Batch>();
+
+    private ScheduledExecutorService expiryChecker;
+
+    public static DeviceBatchManager get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Parse a device filter given as "group:label".
+     * @param filter
+     * @return the filter
+     * @throws IllegalArgumentException if the filter has no group or label
+     */
+    public static DeviceFilter parseFilter(String filter) {
+        int separator = filter.indexOf(':');
+        if (separator <= 0 || separator == filter.length() - 1) {
+            throw new IllegalArgumentException("Device filter must be given as group:label, not " + filter);
+        }
+        return new DeviceFilter(filter.substring(0, separator).trim(), filter.substring(separator + 1).trim());
+    }
+
+    /**
+     * Reserve devices in parallel, waiting until every reservation has either started or failed.
+     * @param logger
+     * @param count number of devices to reserve
+     * @param buildURL
+     * @param memTotal memory to allocate in MB, or null for no throttling
+     * @param filters
+     * @param flashProjectName flash project, or null for the default
+     * @param flashPriority priority when waiting for a flash slot, or null for the default
+     * @return the batch, holding the devices that were reserved and the reasons any others weren't
+     * @throws IllegalArgumentException if the count, build URL or memory allocation are invalid
+     * @throws IOException if the connection to Testdroid fails
+     * @throws InterruptedException if interrupted, after releasing any devices already reserved
+     */
+    public Batch reserve(TestdroidLogger logger, int count, String buildURL, String memTotal,
+                         ArrayList<DeviceFilter> filters, String flashProjectName, String flashPriority)
+            throws IOException, InterruptedException {
+        if (count < 1 || count > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException(String.format("Batch size must be between 1 and %d", MAX_BATCH_SIZE));
+        }
+        if (buildURL == null || buildURL.trim().isEmpty()) {
+            throw new IllegalArgumentException("Build URL is mandatory");
+        }
+        if (memTotal != null) {
+            //checked before any test run is created for flashing
+            try {
+                if (Integer.parseInt(memTotal) < 0) {
+                    throw new IllegalArgumentException("Memory allocation must be 0 or greater");
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Memory allocation must be a number");
+            }
+        }
+        final DeviceSessionWrapper request = new DeviceSessionWrapper(buildURL, memTotal, filters, flashProjectName,
+                flashPriority);
+        removeExpired();
+        final APIClient client = request.connect(logger);
+        DeviceSessionWrapper.DescriptorImpl descriptor = (DeviceSessionWrapper.DescriptorImpl)
+                Jenkins.getInstance().getDescriptor(DeviceSessionWrapper.class);
+        final Batch batch = new Batch(UUID.randomUUID().toString(), request, count, descriptor.getSessionTimeout());
+        logger.info("Reserving %d device%s in batch %s", count, count == 1 ? "" : "s", batch.id);
+
+        final ReservationCollector collector = new ReservationCollector();
+        List<Future<Void>> reservations = new ArrayList<Future<Void>>();
+        for (int i = 0; i < count; i++) {
+            final TestdroidLogger deviceLogger = new TestdroidLogger(logger.getListener())
+                    .with("batch", batch.id).with("slot", i);
+            final FilePath dataDir = new FilePath(new File(getBatchDir(batch.id), Integer.toString(i)));
+            reservations.add(PROVISIONER.submit(new Callable<Void>() {
+                public Void call() throws IOException, InterruptedException {
+                    dataDir.mkdirs();
+                    DeviceReservation reservation = provision(deviceLogger, client, request, dataDir);
+                    if (!collector.add(reservation)) {
+                        //the batch was given up on while this device was being provisioned
+                        release(deviceLogger, request, reservation);
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        boolean completed = false;
+        try {
+            for (Future<Void> reservation : reservations) {
+                try {
+                    reservation.get();
+                } catch (ExecutionException e) {
+                    logger.warn("Failed to reserve device: %s", e.getCause().getMessage());
+                    batch.errors.add(String.valueOf(e.getCause().getMessage()));
+                }
+            }
+            completed = true;
+        } finally {
+            //reservations still running release their own sessions once they see the batch is closed
+            List<DeviceReservation> reserved = collector.close();
+            if (completed) {
+                batch.devices.addAll(reserved);
+            } else {
+                for (Future<Void> reservation : reservations) {
+                    reservation.cancel(true);
+                }
+                releaseAll(logger, batch, reserved);
+                deleteBatchDir(batch.id);
+            }
+        }
+        logger.info("Reserved %d of %d device%s in batch %s", batch.devices.size(), count, count == 1 ? "" : "s",
+                batch.id);
+        if (!batch.devices.isEmpty()) {
+            synchronized (this) {
+                batches.put(batch.id, batch);
+                scheduleExpiryCheck();
+            }
+        } else {
+            deleteBatchDir(batch.id);
+        }
+        return batch;
+    }
+
+    /**
+     * Release every device in the batch.
+     * @param logger
+     * @param id
+     * @return the released batch, or null if there is no such batch
+     * @throws InterruptedException
+     */
+    public Batch release(TestdroidLogger logger, String id) throws InterruptedException {
+        removeExpired();
+        Batch batch;
+        synchronized (this) {
+            batch = batches.remove(id);
+        }
+        if (batch == null) {
+            return null;
+        }
+        logger.info("Releasing %d device%s in batch %s", batch.devices.size(), batch.devices.size() == 1 ? "" : "s",
+                batch.id);
+        releaseAll(logger, batch, batch.devices);
+        deleteBatchDir(batch.id);
+        return batch;
+    }
+
+    /**
+     * @return batches that haven't been released and whose sessions may still be running
+     */
+    public synchronized List<Batch> getBatches() {
+        return new ArrayList<Batch>(batches.values());
+    }
+
+    //forget batches whose sessions have all timed out, deleting their data
+    private void removeExpired() {
+        long now = System.currentTimeMillis();
+        List<Batch> expired = new ArrayList<Batch>();
+        synchronized (this) {
+            Iterator<Batch> iterator = batches.values().iterator();
+            while (iterator.hasNext()) {
+                Batch batch = iterator.next();
+                if (batch.isExpired(now)) {
+                    expired.add(batch);
+                    iterator.remove();
+                }
+            }
+        }
+        for (Batch batch : expired) {
+            LOGGER.log(Level.INFO, "Removing device batch {0}, its sessions have timed out", batch.id);
+            deleteBatchDir(batch.id);
+        }
+    }
+
+    private synchronized void scheduleExpiryCheck() {
+        if (expiryChecker == null) {
+            expiryChecker = Executors.newSingleThreadScheduledExecutor(
+                    new NamingThreadFactory(new DaemonThreadFactory(), "Testdroid batch expiry"));
+            expiryChecker.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    removeExpired();
+                }
+            }, EXPIRY_CHECK_INTERVAL, EXPIRY_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private DeviceReservation provision(TestdroidLogger logger, APIClient client, DeviceSessionWrapper request,
+                                        FilePath dataDir) throws IOException, InterruptedException {
+        ProvisioningEvent event = new ProvisioningEvent(BATCH_JOB);
+        try {
+            DeviceReservation reservation = request.provision(logger, client, BATCH_JOB, dataDir,
+                    request.getDeviceFilters(), request.getBuildURL(), request.getMemTotal(),
+                    request.getFlashProjectName(), event);
+            event.setOutcome(ProvisioningEvent.Outcome.SUCCESS);
+            return reservation;
+        } catch (InterruptedException ie) {
+            event.setOutcome(ProvisioningEvent.Outcome.ABORTED);
+            throw ie;
+        } finally {
+            event.finish();
+            ProvisioningHistory.get().record(event);
+        }
+    }
+
+    private void releaseAll(final TestdroidLogger logger, final Batch batch, List<DeviceReservation> devices)
+            throws InterruptedException {
+        List<Future<?>> releases = new ArrayList<Future<?>>();
+        for (final DeviceReservation device : devices) {
+            releases.add(RELEASER.submit(new Runnable() {
+                public void run() {
+                    release(logger, batch.request, device);
+                }
+            }));
+        }
+        for (Future<?> release : releases) {
+            try {
+                release.get();
+            } catch (ExecutionException e) {
+                logger.warn(e.getCause(), "Failed to release device in batch %s", batch.id);
+            }
+        }
+    }
+
+    private void release(TestdroidLogger logger, DeviceSessionWrapper request, DeviceReservation device) {
+        try {
+            request.releaseDeviceSession(logger, device.getClient(), device.getSession());
+        } catch (IOException e) {
+            //Recreate API client as tokens(auth or/and refresh tokens might be expired
+            try {
+                request.releaseDeviceSession(logger, request.getAPIClient(logger), device.getSession());
+            } catch (IOException ioe) {
+                logger.warn(ioe, "Failed to release device session %d", device.getSession().getId());
+            }
+        }
+    }
+
+    private static File getBatchDir(String id) {
+        return new File(new File(Jenkins.getInstance().getRootDir(), BATCHES_DIR), id);
+    }
+
+    private static void deleteBatchDir(String id) {
+        try {
+            Util.deleteRecursive(getBatchDir(id));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to delete data of device batch " + id, e);
+        }
+    }
+
+    /**
+     * Hands reserved devices over to the reserving thread. Devices added once the batch is closed are refused, so the
+     * thread that reserved them must release them.
+     */
+    private static class ReservationCollector {
+        private final List<DeviceReservation> reserved = new ArrayList<DeviceReservation>();
+        private boolean closed;
+
+        synchronized boolean add(DeviceReservation reservation) {
+            if (closed) {
+                return false;
+            }
+            reserved.add(reservation);
+            return true;
+        }
+
+        synchronized List<DeviceReservation> close() {
+            closed = true;
+            return new ArrayList<DeviceReservation>(reserved);
+        }
+    }
+
+    /**
+     * Devices reserved together, released by batch ID.
+     */
+    public static class Batch {
+        private final String id;
+        private final DeviceSessionWrapper request;
+        private final int requested;
+        private final int sessionTimeout;
+        private final long created = System.currentTimeMillis();
+        private final List<DeviceReservation> devices = new ArrayList<DeviceReservation>();
+        private final List<String> errors = new ArrayList<String>();
+
+        Batch(String id, DeviceSessionWrapper request, int requested, int sessionTimeout) {
+            this.id = id;
+            this.request = request;
+            this.requested = requested;
+            this.sessionTimeout = sessionTimeout;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getBuildURL() {
+            return request.getBuildURL();
+        }
+
+        public Date getCreated() {
+            return new Date(created);
+        }
+
+        public int getRequested() {
+            return requested;
+        }
+
+        public List<DeviceReservation> getDevices() {
+            return devices;
+        }
+
+        public boolean isComplete() {
+            return devices.size() == requested;
+        }
+
+        //sessions end at the session timeout even if the batch is never released, counted from when each started
+        boolean isExpired(long now) {
+            for (DeviceReservation device : devices) {
+                if (now - device.getSessionStarted() <= sessionTimeout * 1000L) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("batchId", id);
+            json.put("requested", requested);
+            JSONArray reserved = new JSONArray();
+            for (DeviceReservation device : devices) {
+                reserved.add(device.toJSON());
+            }
+            json.put("devices", reserved);
+            JSONArray failures = new JSONArray();
+            failures.addAll(errors);
+            json.put("errors", failures);
+            return json;
+        }
+    }
+}
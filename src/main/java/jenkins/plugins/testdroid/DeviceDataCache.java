@@ -0,0 +1,120 @@
+package jenkins.plugins.testdroid;
+
+import com.testdroid.api.APIClient;
+import com.testdroid.api.APIException;
+import com.testdroid.api.APIList;
+import com.testdroid.api.model.APIDeviceProperty;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Controller-wide cache of the device data written to device.json, keyed by device ID.
+ * <p/>
+ * Flashing a device changes its build identifier label, so entries are invalidated whenever a flash is started on the
+ * device. Labels can also be edited in the Testdroid console, so entries expire after {@link #MAX_AGE} as well.
+ */
+public class DeviceDataCache {
+
+    private static final DeviceDataCache INSTANCE = new DeviceDataCache();
+
+    private final static long MAX_AGE = 10*60*1000;  //10mins
+
+    private final Map<Long, Entry> entries = new HashMap<Long, Entry>();
+
+    public static DeviceDataCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get the rendered device data, fetching the device labels if they aren't cached.
+     * @param logger
+     * @param client
+     * @param deviceId
+     * @param compact render on a single line instead of indented
+     * @return device data in JSON, or null if the device has no labels
+     * @throws APIException
+     */
+    @SuppressWarnings("unchecked")
+    public String getDeviceData(TestdroidLogger logger, APIClient client, long deviceId, boolean compact) throws APIException {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(deviceId);
+        }
+        if (entry == null || entry.isExpired()) {
+            APIList<APIDeviceProperty> deviceProperties = client.get(String.format("/devices/%d/properties?limit=0", deviceId), APIList.class);
+            entry = new Entry(deviceProperties != null ? deviceProperties.getData() : null);
+            synchronized (this) {
+                entries.put(deviceId, entry);
+            }
+        } else {
+            logger.debug("Using cached device data for device %d", deviceId);
+        }
+        return entry.render(compact);
+    }
+
+    public synchronized void invalidate(long deviceId) {
+        entries.remove(deviceId);
+    }
+
+    private static class Entry {
+        private final long created = System.currentTimeMillis();
+        private final JSONObject data;
+        private String indented;
+        private String compact;
+
+        Entry(List<APIDeviceProperty> properties) {
+            if (properties == null || properties.isEmpty()) {
+                data = null;
+                return;
+            }
+            //group the labels in a single pass, then build the JSON once
+            Map<String, List<String>> groups = new LinkedHashMap<String, List<String>>();
+            for (APIDeviceProperty property : properties) {
+                String groupName = property.getPropertyGroupName().toLowerCase().replace(" ", "_");
+                List<String> labels = groups.get(groupName);
+                if (labels == null) {
+                    labels = new ArrayList<String>();
+                    groups.put(groupName, labels);
+                }
+                labels.add(property.getDisplayName());
+            }
+            data = new JSONObject();
+            for (Map.Entry<String, List<String>> group : groups.entrySet()) {
+                List<String> labels = group.getValue();
+                if (labels.size() == 1) {
+                    data.put(group.getKey(), labels.get(0));
+                } else {
+                    JSONArray array = new JSONArray();
+                    array.addAll(labels);
+                    data.put(group.getKey(), array);
+                }
+            }
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() - created > MAX_AGE;
+        }
+
+        synchronized String render(boolean compact) {
+            if (data == null) {
+                return null;
+            }
+            if (compact) {
+                if (this.compact == null) {
+                    this.compact = data.toString();
+                }
+                return this.compact;
+            }
+            if (indented == null) {
+                indented = data.toString(2);
+            }
+            return indented;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package jenkins.plugins.testdroid;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Controller-wide record of provisioning failures per device.
+ * <p/>
+ * Every failure adds to a score that halves every {@link #SCORE_HALF_LIFE}, so old failures are gradually forgotten.
+ * A device whose score reaches {@link #QUARANTINE_THRESHOLD} is quarantined and won't be selected by searches until
+ * the quarantine expires. Each repeated quarantine doubles its length, and a successful session clears the history.
+ */
+public class DeviceHealthTracker {
+
+    private static final Logger LOGGER = Logger.getLogger(DeviceHealthTracker.class.getName());
+
+    private static final DeviceHealthTracker INSTANCE = new DeviceHealthTracker();
+
+    private final static double QUARANTINE_THRESHOLD = 3;
+    private final static long SCORE_HALF_LIFE = 60*60*1000;  //1hour
+    private final static long QUARANTINE_PERIOD = 15*60*1000;  //15mins
+    private final static long MAX_QUARANTINE_PERIOD = 4*60*60*1000;  //4hours
+
+    public enum Failure {
+        FLASH_FAILED("flash failed"),
+        FLASH_TIMEOUT("flash timed out"),
+        SESSION_TIMEOUT("session not started"),
+        PROXY_TIMEOUT("proxy not available");
+
+        private final String description;
+
+        Failure(String description) {
+            this.description = description;
+        }
+
+        @Override
+        public String toString() {
+            return description;
+        }
+    }
+
+    private final Map<Long, Health> devices = new HashMap<Long, Health>();
+
+    DeviceHealthTracker() {
+    }
+
+    public static DeviceHealthTracker get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Record a failure, quarantining the device if it has failed too often recently.
+     * @param deviceId
+     * @param deviceName
+     * @param failure
+     * @return true if the device has been quarantined as a result
+     */
+    public boolean recordFailure(long deviceId, String deviceName, Failure failure) {
+        return recordFailure(deviceId, deviceName, failure, System.currentTimeMillis());
+    }
+
+    synchronized boolean recordFailure(long deviceId, String deviceName, Failure failure, long now) {
+        Health health = devices.get(deviceId);
+        if (health == null) {
+            health = new Health(deviceId);
+            devices.put(deviceId, health);
+        }
+        health.deviceName = deviceName;
+        health.lastFailure = failure;
+        health.score = health.getScore(now) + 1;
+        health.scoredAt = now;
+        if (health.score >= QUARANTINE_THRESHOLD && !health.isQuarantined(now)) {
+            long period = Math.min(QUARANTINE_PERIOD << Math.min(health.quarantines, 10), MAX_QUARANTINE_PERIOD);
+            health.quarantines++;
+            health.quarantinedUntil = now + period;
+            health.score = 0;
+            LOGGER.log(Level.WARNING, "Quarantined device {0} ({1}) for {2} minutes after {3}",
+                    new Object[] {deviceName, String.valueOf(deviceId), period / 60000, failure});
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Forget the failures of a device that has successfully started a session.
+     * @param deviceId
+     */
+    public synchronized void recordSuccess(long deviceId) {
+        devices.remove(deviceId);
+    }
+
+    public boolean isQuarantined(long deviceId) {
+        return isQuarantined(deviceId, System.currentTimeMillis());
+    }
+
+    synchronized boolean isQuarantined(long deviceId, long now) {
+        Health health = devices.get(deviceId);
+        return health != null && health.isQuarantined(now);
+    }
+
+    /**
+     * @return devices currently in quarantine, the longest remaining first
+     */
+    public synchronized List<Quarantine> getQuarantined() {
+        long now = System.currentTimeMillis();
+        List<Quarantine> quarantined = new ArrayList<Quarantine>();
+        for (Iterator<Health> it = devices.values().iterator(); it.hasNext(); ) {
+            Health health = it.next();
+            if (health.isQuarantined(now)) {
+                quarantined.add(new Quarantine(health));
+            } else if (health.getScore(now) < 0.01 && health.quarantinedUntil < now - MAX_QUARANTINE_PERIOD) {
+                //long forgotten
+                it.remove();
+            }
+        }
+        Collections.sort(quarantined, new Comparator<Quarantine>() {
+            public int compare(Quarantine a, Quarantine b) {
+                return b.getUntil().compareTo(a.getUntil());
+            }
+        });
+        return quarantined;
+    }
+
+    private static class Health {
+        final long deviceId;
+        String deviceName;
+        Failure lastFailure;
+        double score;
+        long scoredAt;
+        int quarantines;
+        long quarantinedUntil;
+
+        Health(long deviceId) {
+            this.deviceId = deviceId;
+        }
+
+        double getScore(long now) {
+            return score * Math.pow(0.5, (double) (now - scoredAt) / SCORE_HALF_LIFE);
+        }
+
+        boolean isQuarantined(long now) {
+            return quarantinedUntil > now;
+        }
+    }
+
+    /**
+     * Snapshot of a quarantined device for display.
+     */
+    public static class Quarantine {
+        private final long deviceId;
+        private final String deviceName;
+        private final String reason;
+        private final int quarantines;
+        private final Date until;
+
+        Quarantine(Health health) {
+            this.deviceId = health.deviceId;
+            this.deviceName = health.deviceName;
+            this.reason = String.valueOf(health.lastFailure);
+            this.quarantines = health.quarantines;
+            this.until = new Date(health.quarantinedUntil);
+        }
+
+        public long getDeviceId() {
+            return deviceId;
+        }
+
+        public String getDeviceName() {
+            return deviceName;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        public int getQuarantines() {
+            return quarantines;
+        }
+
+        public Date getUntil() {
+            return until;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package jenkins.plugins.testdroid;
+
+import com.testdroid.api.APIClient;
+import com.testdroid.api.model.APIDevice;
+import com.testdroid.api.model.APIDeviceSession;
+import net.sf.json.JSONObject;
+
+/**
+ * A running device session and the details needed to connect to the device.
+ */
+public class DeviceReservation {
+
+    private final APIClient client;
+    private final APIDevice device;
+    private final APIDeviceSession session;
+    private final long sessionStarted;
+    private final String host;
+    private final JSONObject adb;
+    private final JSONObject marionette;
+    private final String deviceDataPath;
+
+    DeviceReservation(APIClient client, APIDevice device, APIDeviceSession session, long sessionStarted, String host,
+                      JSONObject adb, JSONObject marionette, String deviceDataPath) {
+        this.client = client;
+        this.device = device;
+        this.session = session;
+        this.sessionStarted = sessionStarted;
+        this.host = host;
+        this.adb = adb;
+        this.marionette = marionette;
+        this.deviceDataPath = deviceDataPath;
+    }
+
+    public APIClient getClient() {
+        return client;
+    }
+
+    public APIDevice getDevice() {
+        return device;
+    }
+
+    public APIDeviceSession getSession() {
+        return session;
+    }
+
+    /**
+     * @return when the session was requested, which its timeout counts from
+     */
+    public long getSessionStarted() {
+        return sessionStarted;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public JSONObject getAdb() {
+        return adb;
+    }
+
+    public JSONObject getMarionette() {
+        return marionette;
+    }
+
+    /**
+     * @return connection details, named after the environment variables set for builds
+     */
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.put("sessionId", session.getId());
+        json.put("deviceId", device.getId());
+        json.put("deviceName", device.getDisplayName());
+        json.put("adbHost", host);
+        json.put("adbPort", adb.getString("port"));
+        json.put("androidSerial", adb.getString("serialId"));
+        json.put("marionetteHost", host);
+        json.put("marionettePort", marionette.getString("port"));
+        json.put("marionetteForwardHost", marionette.getString("forwardHost"));
+        json.put("marionetteForwardPort", marionette.getString("forwardPort"));
+        json.put("deviceData", deviceDataPath);
+        return json;
+    }
+}
@@ -9,11 +9,13 @@ import hudson.model.BuildListener;
 import hudson.model.Computer;
 import hudson.tasks.BuildWrapper;
 import hudson.tasks.BuildWrapperDescriptor;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.FormValidation;
+import hudson.util.NamingThreadFactory;
 import jenkins.model.Jenkins;
 import jenkins.plugins.testdroid.exceptions.FlashTimeoutException;
+import jenkins.plugins.testdroid.exceptions.ProxyTimeoutException;
 import net.sf.json.JSONArray;
-import net.sf.json.JSONException;
 import net.sf.json.JSONObject;
 import net.sf.json.JSONSerializer;
 import org.apache.commons.io.IOUtils;
@@ -29,20 +31,21 @@ import java.net.URI;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.util.*;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.concurrent.*;
 
 @ExportedBean
 public class DeviceSessionWrapper extends BuildWrapper {
 
-    private static final transient Logger LOGGER = Logger.getLogger(DeviceSessionWrapper.class.getName());
-
     private static final long serialVersionUID = 1L;
 
     private final static String DEFAULT_FLASH_PROJECT_NAME = "flash-fxos";
     private final static int DEFAULT_FLASH_TIMEOUT = 10*60;  //10mins
     private final static int DEFAULT_FLASH_RETRIES = 5;
     private final static int DEFAULT_SESSION_TIMEOUT = 30*60;  //30mins
+    private final static int DEFAULT_SESSION_LEASE = 0;  //disabled
+    private final static int DEFAULT_SPECULATIVE_SESSIONS = 1;  //disabled
+    private final static int DEFAULT_FLASH_CONCURRENCY = 0;  //unlimited
+    private final static int DEFAULT_FLASH_PRIORITY = 0;
 
     //device label group which contains all the build version labels
     private final static String BUILD_IDENTIFIER_LABEL_GROUP = "Build Identifier";
@@ -59,6 +62,29 @@ public class DeviceSessionWrapper extends BuildWrapper {
     private final static int WAIT_FOR_DEVICE_SESSION = 1*60*1000;  //1min
 
     private final static int POLL_INTERVAL = 10*1000;
+    //shortest wait between flash run polls, even when the flash is about to time out
+    private final static int MIN_POLL_INTERVAL = 1000;
+
+    //minimum interval between repeated poll messages in the controller log
+    private final static int POLL_LOG_INTERVAL = 60*1000;  //1min
+
+    //maximum concurrent label lookups across all builds
+    private final static int LABEL_RESOLVER_THREADS = 8;
+
+    private static final transient ExecutorService LABEL_RESOLVER = Executors.newFixedThreadPool(LABEL_RESOLVER_THREADS,
+            new NamingThreadFactory(new DaemonThreadFactory(), "Testdroid label resolver"));
+
+    //maximum concurrent device data writes across all builds
+    private final static int DEVICE_DATA_WRITER_THREADS = 4;
+
+    private static final transient ExecutorService DEVICE_DATA_WRITER = Executors.newFixedThreadPool(DEVICE_DATA_WRITER_THREADS,
+            new NamingThreadFactory(new DaemonThreadFactory(), "Testdroid device data writer"));
+
+    //maximum concurrent speculative session requests across all builds
+    private final static int SESSION_REQUESTER_THREADS = 16;
+
+    private static final transient ExecutorService SESSION_REQUESTER = Executors.newFixedThreadPool(SESSION_REQUESTER_THREADS,
+            new NamingThreadFactory(new DaemonThreadFactory(), "Testdroid session requester"));
 
     private final static String DEVICE_DATA_JSON_FILENAME = "device.json";
 
@@ -70,17 +96,20 @@ public class DeviceSessionWrapper extends BuildWrapper {
     private ArrayList<DeviceFilter> deviceFilters = new ArrayList<DeviceFilter>();
     //flash project name
     private String flashProjectName;
+    //priority when waiting for a flash slot
+    private String flashPriority;
 
     @DataBoundConstructor
     @SuppressWarnings("hiding")
-    public DeviceSessionWrapper(String buildURL, String memTotal, ArrayList<DeviceFilter> deviceFilters, String flashProjectName) {
+    public DeviceSessionWrapper(String buildURL, String memTotal, ArrayList<DeviceFilter> deviceFilters, String flashProjectName, String flashPriority) {
         this.buildURL = buildURL;
         this.memTotal = memTotal;
         this.deviceFilters = deviceFilters;
         this.flashProjectName = flashProjectName;
+        this.flashPriority = flashPriority;
     }
 
-    private APIClient getAPIClient(TestdroidLogger logger) {
+    APIClient getAPIClient(TestdroidLogger logger) {
         DescriptorImpl descriptor = (DescriptorImpl) Jenkins.getInstance().getDescriptor(getClass());
         HttpHost proxy = null;
         ProxyConfiguration proxyConfiguration = Jenkins.getInstance().proxy;
@@ -99,6 +128,23 @@ public class DeviceSessionWrapper extends BuildWrapper {
         return client;
     }
 
+    /**
+     * Create an API client and check the credentials are accepted.
+     * @param logger
+     * @return authorized client
+     * @throws IOException if the connection fails
+     */
+    APIClient connect(TestdroidLogger logger) throws IOException {
+        APIClient client = getAPIClient(logger);
+        try {
+            client.me();
+        } catch (APIException e) {
+            logger.error("Connection failed! " + e.getMessage());
+            throw new IOException(e);
+        }
+        return client;
+    }
+
     /**
      * Sets up build environment
      * <p/>
@@ -107,20 +153,24 @@ public class DeviceSessionWrapper extends BuildWrapper {
     @Override
     @SuppressWarnings({"hiding", "unchecked"})
     public Environment setUp(final AbstractBuild build, final Launcher launcher, final BuildListener listener) throws IOException, InterruptedException {
-        DescriptorImpl descriptor = (DescriptorImpl) Jenkins.getInstance().getDescriptor(getClass());
-        TestdroidLogger logger = new TestdroidLogger(listener);
-        APIClient client = getAPIClient(logger);
-        APIUser user = null;
-
-        //authorize
+        ProvisioningEvent event = new ProvisioningEvent(build.getProject().getFullName());
         try {
-            user = client.me();
-        } catch (APIException e) {
-            logger.error("Connection failed! " + e.getMessage());
-            throw new IOException(e);
+            Environment environment = startSession(build, launcher, listener, event);
+            event.setOutcome(ProvisioningEvent.Outcome.SUCCESS);
+            return environment;
+        } catch (InterruptedException ie) {
+            event.setOutcome(ProvisioningEvent.Outcome.ABORTED);
+            throw ie;
+        } finally {
+            event.finish();
+            ProvisioningHistory.get().record(event);
         }
+    }
 
-        final String host = new URL(descriptor.endPointURL).getHost();
+    @SuppressWarnings({"hiding", "unchecked"})
+    private Environment startSession(final AbstractBuild build, final Launcher launcher, final BuildListener listener, ProvisioningEvent event) throws IOException, InterruptedException {
+        TestdroidLogger logger = new TestdroidLogger(listener).withBuild(build.getFullDisplayName());
+        APIClient client = connect(logger);
 
         String finalBuildURL = applyMacro(build, listener, getBuildURL());
         String finalMemTotal = applyMacro(build, listener, getMemTotal());
@@ -133,118 +183,331 @@ public class DeviceSessionWrapper extends BuildWrapper {
             finalDeviceFilters.add(new DeviceFilter(finalGroup, finalLabel));
         }
 
-        String buildIdentifier = String.format("%s_%s", finalMemTotal, finalBuildURL);
+        DeviceReservation reservation = provision(logger, client, build.getProject().getFullName(), build.getWorkspace(),
+                finalDeviceFilters, finalBuildURL, finalMemTotal, finalFlashProjectName, event);
+        final String host = reservation.getHost();
+
+        return new TestdroidSessionEnvironment(client, reservation.getSession(), reservation.getAdb(), reservation.getMarionette()) {
+
+            @Override
+            public void buildEnvVars(Map<String, String> env) {
+                env.put("SESSION_ID", Long.toString(apiDeviceSession.getId()));
+                env.put("ADB_PORT", adbJSONObject.getString("port"));
+                env.put("ADB_HOST", host);
+                env.put("DEVICE_DATA", DEVICE_DATA_JSON_FILENAME);
+                env.put("ANDROID_SERIAL", adbJSONObject.getString("serialId"));
+                env.put("MARIONETTE_PORT", marionetteJSONObject.getString("port"));
+                env.put("MARIONETTE_HOST", host);
+                env.put("MARIONETTE_FORWARD_HOST", marionetteJSONObject.getString("forwardHost"));
+                env.put("MARIONETTE_FORWARD_PORT", marionetteJSONObject.getString("forwardPort"));
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public boolean tearDown(AbstractBuild build, BuildListener listener)
+                    throws IOException, InterruptedException {
+                TestdroidLogger logger = new TestdroidLogger(listener).withBuild(build.getFullDisplayName());
+
+                if(apiDeviceSession == null) {
+                    logger.warn("Session was not initialized, skipping session release");
+                    return true;
+                }
+                logger.withSession(apiDeviceSession.getId());
+                try {
+                    releaseDeviceSession(logger, getApiClient(), getApiDeviceSession());
+                } catch (IOException e) {
+                    //Recreate API client as tokens(auth or/and refresh tokens might be expired
+                    final APIClient client = getAPIClient(logger);
+                    releaseDeviceSession(logger, client, getApiDeviceSession());
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Find or flash a device matching the filters, start a session on it and wait for its proxies.
+     * <p/>
+     * Doesn't depend on a build, so devices can also be reserved through {@link DeviceBatchManager}.
+     * @param logger
+     * @param client authorized client, see {@link #connect(TestdroidLogger)}
+     * @param job name the flash slot and provisioning report are accounted to
+     * @param dataDir directory the device data and any flash logs are written to
+     * @param filters
+     * @param buildURL
+     * @param memTotal
+     * @param flashProjectName
+     * @param event
+     * @return the started session and its connection details
+     * @throws IOException if no session could be started
+     * @throws InterruptedException
+     */
+    DeviceReservation provision(TestdroidLogger logger, APIClient client, String job, FilePath dataDir,
+                                ArrayList<DeviceFilter> filters, String buildURL, String memTotal, String flashProjectName,
+                                ProvisioningEvent event) throws IOException, InterruptedException {
+        DescriptorImpl descriptor = (DescriptorImpl) Jenkins.getInstance().getDescriptor(getClass());
+        String host = new URL(descriptor.endPointURL).getHost();
+        event.setFilters(FlashScheduler.getGroupKey(filters));
+
+        String buildIdentifier = String.format("%s_%s", memTotal, buildURL);
 
         APIDevice device = null;
 
         APIDeviceSession session = null;
 
         int retries = descriptor.getFlashRetries();
+        int attempts = 0;
+        long sessionStarted = 0;
         do {
-
+            event.setRetryCount(attempts++);
+            long searchStarted = System.currentTimeMillis();
+            long flashTime = event.getFlashTime();
+            List<APIDevice> candidates = Collections.emptyList();
             try {
-                device = getDevice(build, launcher, logger, client, finalDeviceFilters, buildIdentifier, finalBuildURL, finalMemTotal, finalFlashProjectName);
+                candidates = getDevices(job, dataDir, logger, client, filters, buildIdentifier, buildURL, memTotal, flashProjectName, descriptor.getSpeculativeSessions(), event);
             } catch (APIException e) {
                 logger.error("Failed to retrieve device by build id " + e.getMessage());
                 throw new IOException(e);
             } catch (FlashTimeoutException fte) {
                 logger.warn(fte.getMessage());
+            } finally {
+                event.addSearchTime(System.currentTimeMillis() - searchStarted - (event.getFlashTime() - flashTime));
             }
-            if(device == null) {
+            if(candidates.isEmpty()) {
                 continue;
             }
-            Map<String, String> deviceSessionsParams = new HashMap<String, String>();
-            deviceSessionsParams.put("deviceModelId", device.getId().toString());
-            deviceSessionsParams.put("timeout", descriptor.getSessionTimeout().toString());
-
-            //in this phase we have found device with specific label, however it might not be available anymore
-            //1) request device session
-            try {
-                session = client.post("/me/device-sessions", deviceSessionsParams, APIDeviceSession.class);
-            } catch (APIException e) {
-                //allow to continue if device lock can't be created otherwise throw IOException
-                if (e.getStatus() != 400) {
-                    logger.info("Failed to start device session " + e.getMessage());
-                    throw new IOException(e);
+            sessionStarted = System.currentTimeMillis();
+            //with leases the session only lasts as long as the build keeps renewing it, up to the session timeout
+            int sessionLease = descriptor.getSessionLease();
+            int sessionTimeout = descriptor.getSessionTimeout();
+
+            if(candidates.size() > 1) {
+                CandidateSession started = requestSpeculativeSession(logger, client, candidates, sessionLease, sessionTimeout);
+                if(started != null) {
+                    device = started.device;
+                    session = started.session;
                 }
-            }
+            } else {
+                device = candidates.get(0);
 
-            if(session != null && !waitUntilDeviceSessionIsRunning(session, WAIT_FOR_DEVICE_SESSION) ) {
-                logger.info("Timeout when waiting for device session "+session.getId());
-                releaseDeviceSession(logger, client, session);
-                session = null;
+                //in this phase we have found device with specific label, however it might not be available anymore
+                //1) request device session
+                session = requestSession(logger, client, device, sessionLease, sessionTimeout);
 
+                try {
+                    if(session != null && !waitUntilDeviceSessionIsRunning(session, WAIT_FOR_DEVICE_SESSION) ) {
+                        logger.info("Timeout when waiting for device session "+session.getId());
+                        recordDeviceFailure(logger, device, DeviceHealthTracker.Failure.SESSION_TIMEOUT);
+                        releaseDeviceSession(logger, client, session);
+                        session = null;
+
+                    }
+                } catch (InterruptedException ie) {
+                    releaseAbortedSession(logger, client, session);
+                    throw ie;
+                }
             }
+            event.addSessionTime(System.currentTimeMillis() - sessionStarted);
 
         } while (session == null && retries-- > 0);
 
         if(session == null) {
             logger.error("Failed to find device!");
+            event.setOutcome(ProvisioningEvent.Outcome.NO_DEVICE);
             throw new IOException("Device session is null");
         }
+        event.setDeviceId(device.getId());
 
-        logger.info(String.format("Started session %d", session.getId()));
-        LOGGER.log(Level.INFO, String.format("Started session %d on device %d", session.getId(), device.getId()));
-
-        writeDeviceDataJSON(build, launcher, listener, client, device, DEVICE_DATA_JSON_FILENAME);
+        logger.withSession(session.getId()).withDevice(device.getId());
+        logger.info("Started session %d on device %s (%d)", session.getId(), device.getDisplayName(), device.getId());
 
+        long proxyStarted = System.currentTimeMillis();
         JSONObject adb;
         JSONObject marionette;
+        Future<Void> deviceData = writeDeviceDataJSONAsync(dataDir, logger, client, device, DEVICE_DATA_JSON_FILENAME);
         try {
-            adb = getProxy("adb", client, session);
+            adb = getProxy("adb", logger, client, session);
             logger.info("ADB port: " + adb.getString("port"));
             logger.info("ADB host: " + host);
             logger.info("Android serial: " + adb.getString("serialId"));
-            marionette = getProxy("marionette", client, session);
+            marionette = getProxy("marionette", logger, client, session);
             logger.info("Marionette port: " + marionette.getString("port"));
             logger.info("Marionette host: " + host);
             logger.info("Marionette forwarding host: " + marionette.getString("forwardHost"));
             logger.info("Marionette forwarding port: " + marionette.getString("forwardPort"));
         } catch (IOException ioe) {
+            deviceData.cancel(true);
             logger.info("Failed to fetch proxy entries " + ioe.getMessage());
+            if (ioe instanceof ProxyTimeoutException) {
+                recordDeviceFailure(logger, device, DeviceHealthTracker.Failure.PROXY_TIMEOUT);
+            }
             releaseDeviceSession(logger, client, session);
             throw ioe;
         } catch (InterruptedException ie) {
+            deviceData.cancel(true);
             logger.info("Failed to fetch proxy entries " + ie.getMessage());
+            releaseAbortedSession(logger, client, session);
+            throw ie;
+        }
+        try {
+            waitForDeviceData(deviceData);
+        } catch (IOException ioe) {
+            logger.error("Failed to write device data to %s: %s", dataDir.child(DEVICE_DATA_JSON_FILENAME).getRemote(),
+                    ioe.getMessage());
             releaseDeviceSession(logger, client, session);
+            throw ioe;
+        } catch (InterruptedException ie) {
+            releaseAbortedSession(logger, client, session);
             throw ie;
         }
+        DeviceHealthTracker.get().recordSuccess(device.getId());
+        event.addProxyTime(System.currentTimeMillis() - proxyStarted);
 
-        return new TestdroidSessionEnvironment(client, session, adb, marionette) {
+        return new DeviceReservation(client, device, session, sessionStarted, host, adb, marionette,
+                dataDir.child(DEVICE_DATA_JSON_FILENAME).getRemote());
+    }
 
-            @Override
-            public void buildEnvVars(Map<String, String> env) {
-                env.put("SESSION_ID", Long.toString(apiDeviceSession.getId()));
-                env.put("ADB_PORT", adbJSONObject.getString("port"));
-                env.put("ADB_HOST", host);
-                env.put("DEVICE_DATA", DEVICE_DATA_JSON_FILENAME);
-                env.put("ANDROID_SERIAL", adbJSONObject.getString("serialId"));
-                env.put("MARIONETTE_PORT", marionetteJSONObject.getString("port"));
-                env.put("MARIONETTE_HOST", host);
-                env.put("MARIONETTE_FORWARD_HOST", marionetteJSONObject.getString("forwardHost"));
-                env.put("MARIONETTE_FORWARD_PORT", marionetteJSONObject.getString("forwardPort"));
+    /**
+     * Request a session on the device, renewing its lease while the build runs if leases are enabled.
+     * @param logger
+     * @param client
+     * @param device
+     * @param sessionLease
+     * @param sessionTimeout
+     * @return the session, or null if the device is no longer available
+     * @throws IOException
+     */
+    private APIDeviceSession requestSession(TestdroidLogger logger, APIClient client, APIDevice device, int sessionLease, int sessionTimeout) throws IOException {
+        Map<String, String> deviceSessionsParams = new HashMap<String, String>();
+        deviceSessionsParams.put("deviceModelId", device.getId().toString());
+        deviceSessionsParams.put("timeout", Integer.toString(sessionLease > 0 ? Math.min(sessionLease, sessionTimeout) : sessionTimeout));
+        try {
+            APIDeviceSession session = client.post("/me/device-sessions", deviceSessionsParams, APIDeviceSession.class);
+            if (session != null && sessionLease > 0) {
+                SessionLeaseRenewer.get().register(logger, this, client, session, sessionLease, sessionTimeout);
             }
+            return session;
+        } catch (APIException e) {
+            //allow to continue if device lock can't be created otherwise throw IOException
+            if (e.getStatus() != 400) {
+                logger.info("Failed to start device session " + e.getMessage());
+                throw new IOException(e);
+            }
+            return null;
+        }
+    }
 
-            @Override
-            @SuppressWarnings("unchecked")
-            public boolean tearDown(AbstractBuild build, BuildListener listener)
-                    throws IOException, InterruptedException {
-                TestdroidLogger logger = new TestdroidLogger(listener);
-
-                if(apiDeviceSession == null) {
-                    LOGGER.log(Level.WARNING, "Session was not initialized, skipping session release");
-                    return true;
+    /**
+     * Request sessions on all candidate devices at once, keeping the first one to start running and releasing the
+     * others.
+     * @param logger
+     * @param client
+     * @param candidates
+     * @param sessionLease
+     * @param sessionTimeout
+     * @return the device and its running session, or null if none of the sessions started
+     * @throws InterruptedException
+     */
+    private CandidateSession requestSpeculativeSession(final TestdroidLogger logger, final APIClient client, List<APIDevice> candidates,
+                                                       final int sessionLease, final int sessionTimeout) throws InterruptedException {
+        logger.info("Requesting sessions on %d devices, keeping the first to start", candidates.size());
+        final SessionRace race = new SessionRace();
+        CompletionService<Void> completionService = new ExecutorCompletionService<Void>(SESSION_REQUESTER);
+        List<Future<Void>> requests = new ArrayList<Future<Void>>();
+        for (final APIDevice candidate : candidates) {
+            requests.add(completionService.submit(new Callable<Void>() {
+                public Void call() throws IOException, InterruptedException {
+                    APIDeviceSession session = requestSession(logger, client, candidate, sessionLease, sessionTimeout);
+                    if (session == null) {
+                        return null;
+                    }
+                    try {
+                        if (waitUntilDeviceSessionIsRunning(session, WAIT_FOR_DEVICE_SESSION)) {
+                            if (!race.offer(new CandidateSession(candidate, session))) {
+                                //another session started first, or the build was aborted
+                                releaseUnusedSession(logger, client, session);
+                            }
+                            return null;
+                        }
+                    } catch (InterruptedException ie) {
+                        //another session started first, or the build was aborted
+                        releaseUnusedSession(logger, client, session);
+                        throw ie;
+                    }
+                    logger.info("Timeout when waiting for device session " + session.getId());
+                    recordDeviceFailure(logger, candidate, DeviceHealthTracker.Failure.SESSION_TIMEOUT);
+                    releaseUnusedSession(logger, client, session);
+                    return null;
                 }
+            }));
+        }
+
+        boolean completed = false;
+        try {
+            for (int i = 0; i < requests.size() && !race.hasWinner(); i++) {
+                Future<Void> request = completionService.take();
                 try {
-                    releaseDeviceSession(logger, getApiClient(), getApiDeviceSession());
-                } catch (IOException e) {
-                    //Recreate API client as tokens(auth or/and refresh tokens might be expired
-                    final APIClient client = getAPIClient(logger);
-                    releaseDeviceSession(logger, client, getApiDeviceSession());
+                    request.get();
+                } catch (ExecutionException e) {
+                    logger.warn("Failed to start device session %s", e.getCause().getMessage());
                 }
-                return true;
             }
-        };
+            completed = true;
+        } finally {
+            //requests still running release their own sessions once they see the race is over
+            CandidateSession winner = race.close();
+            for (Future<Void> request : requests) {
+                request.cancel(true);
+            }
+            if (!completed && winner != null) {
+                releaseUnusedSession(logger, client, winner.session);
+            }
+        }
+        return race.close();
+    }
+
+    private void releaseUnusedSession(TestdroidLogger logger, APIClient client, APIDeviceSession session) {
+        try {
+            releaseDeviceSession(logger, client, session);
+        } catch (IOException e) {
+            logger.warn(e, "Failed to release unused device session %d", session.getId());
+        }
+    }
+
+    /**
+     * Hands the first session to start over to the requesting thread. Sessions offered once the race is over are
+     * refused, so the thread that started them must release them.
+     */
+    private static class SessionRace {
+        private CandidateSession winner;
+        private boolean closed;
+
+        synchronized boolean offer(CandidateSession candidate) {
+            if (closed || winner != null) {
+                return false;
+            }
+            winner = candidate;
+            return true;
+        }
+
+        synchronized boolean hasWinner() {
+            return winner != null;
+        }
+
+        synchronized CandidateSession close() {
+            closed = true;
+            return winner;
+        }
+    }
+
+    private static class CandidateSession {
+        final APIDevice device;
+        final APIDeviceSession session;
+
+        CandidateSession(APIDevice device, APIDeviceSession session) {
+            this.device = device;
+            this.session = session;
+        }
     }
 
     /**
@@ -275,58 +538,70 @@ public class DeviceSessionWrapper extends BuildWrapper {
         return false;
     }
 
+    /**
+     * Write the device label data into the file in json format on the device data pool, so it overlaps with waiting
+     * for the proxies.
+     *
+     * @param dataDir
+     * @param logger
+     * @param client
+     * @param device
+     * @param jsonFileName
+     * @return completes once the file has been written
+     */
+    private Future<Void> writeDeviceDataJSONAsync(final FilePath dataDir, final TestdroidLogger logger,
+                                                  final APIClient client, final APIDevice device, final String jsonFileName) {
+        return DEVICE_DATA_WRITER.submit(new Callable<Void>() {
+            public Void call() throws InterruptedException, IOException {
+                writeDeviceDataJSON(dataDir, logger, client, device, jsonFileName);
+                return null;
+            }
+        });
+    }
+
+    private void waitForDeviceData(Future<Void> deviceData) throws InterruptedException, IOException {
+        try {
+            deviceData.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof InterruptedException) {
+                throw (InterruptedException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
     /**
      * Write the device label data into the file in json format.
      *
-     * @param build
-     * @param launcher
-     * @param listener
+     * @param dataDir
+     * @param logger
      * @param client
      * @param device
      * @param jsonFileName
      * @throws InterruptedException
      * @throws IOException
      */
-    private void writeDeviceDataJSON(final AbstractBuild build, final Launcher launcher, BuildListener listener,
+    private void writeDeviceDataJSON(FilePath dataDir, TestdroidLogger logger,
                                     APIClient client, APIDevice device, String jsonFileName)
             throws InterruptedException, IOException {
-        TestdroidLogger logger = new TestdroidLogger(listener);
-        URI workspaceURI = build.getWorkspace().toURI();
-        FilePath deviceDataFile = new FilePath(launcher.getChannel(), workspaceURI.getPath() + "/" + jsonFileName);
-
+        DescriptorImpl descriptor = (DescriptorImpl) Jenkins.getInstance().getDescriptor(getClass());
+        FilePath deviceDataFile = dataDir.child(jsonFileName);
 
         try {
-            APIList<APIDeviceProperty> deviceProperties = client.get(String.format("/devices/%d/properties?limit=0", device.getId()), APIList.class);
+            String deviceData = DeviceDataCache.get().getDeviceData(logger, client, device.getId(), descriptor.getCompactDeviceData());
 
-            if (deviceProperties == null || deviceProperties.isEmpty()) {
-                LOGGER.log(Level.INFO, "No device labels have been set for device with ID: " + device.getId());
+            if (deviceData == null) {
+                logger.debug("No device labels have been set for device with ID: %d", device.getId());
                 return;
             }
 
-            JSONObject jsonObject = new JSONObject();
-            for (APIDeviceProperty property : deviceProperties.getData()) {
-                String groupName = property.getPropertyGroupName().toLowerCase().replace(" ", "_");
-                String labelName = property.getDisplayName();
-                if (jsonObject.containsKey(groupName)) {
-                    JSONArray labels = new JSONArray();
-                    try {
-                        labels.addAll(jsonObject.getJSONArray(groupName));
-                    } catch (JSONException e) {
-                        labels.add(jsonObject.get(groupName));
-                    }
-                    labels.add(labelName);
-                    jsonObject.put(groupName, labels);
-                } else {
-                    jsonObject.put(groupName, labelName);
-                }
-            }
-
-            deviceDataFile.write(jsonObject.toString(2), "UTF-8");
-            LOGGER.log(Level.INFO, "Device data: " + jsonObject.toString());
+            deviceDataFile.write(deviceData, "UTF-8");
+            logger.debug("Device data: %s", deviceData);
 
         } catch (APIException e) {
-            logger.error("APIException when reading device label information for device " + device.getId());
-            LOGGER.log(Level.WARNING, "APIException", e);
+            logger.error(e, "APIException when reading device label information for device %d", device.getId());
         }
 
     }
@@ -362,25 +637,27 @@ public class DeviceSessionWrapper extends BuildWrapper {
     }
 
     /**
-     * Search device by label from "Build Version" label group. If device is not available flash device with specific
+     * Search devices by label from "Build Version" label group. If no device is available flash device with specific
      * build seach device again.
 
      *
-     * @param build
-     * @param launcher
+     * @param job
+     * @param dataDir directory flash logs are saved to
      * @param logger
      * @param client
      * @param filters
      * @param buildIdentifier
      * @param buildURL
      * @param memTotal
+     * @param candidates maximum number of matching devices to return when not flashing
+     * @param event
      * @throws APIException
      * @throws IOException
      * @throws InterruptedException
      */
-    private APIDevice getDevice(AbstractBuild build, Launcher launcher, TestdroidLogger logger, APIClient client, ArrayList<DeviceFilter> filters, String buildIdentifier, String buildURL, String memTotal, String flashProjectName) throws APIException, IOException, InterruptedException, FlashTimeoutException {
+    private List<APIDevice> getDevices(String job, FilePath dataDir, TestdroidLogger logger, APIClient client, ArrayList<DeviceFilter> filters, String buildIdentifier, String buildURL, String memTotal, String flashProjectName, int candidates, ProvisioningEvent event) throws APIException, IOException, InterruptedException, FlashTimeoutException {
         DescriptorImpl descriptor = (DescriptorImpl) Jenkins.getInstance().getDescriptor(getClass());
-        APIDevice device;
+        List<APIDevice> devices;
         int retries = descriptor.getFlashRetries();
 
         ArrayList<DeviceFilter> searchFilters = new ArrayList<DeviceFilter>();
@@ -394,24 +671,75 @@ public class DeviceSessionWrapper extends BuildWrapper {
         if (descriptor.getSkipFlash()) {
             //look for device having "Build Identifier" label with value {buildIdentifier}
             searchFilters.add(new DeviceFilter(BUILD_IDENTIFIER_LABEL_GROUP, buildIdentifier));
-            while ((device = searchDevice(logger, client, searchFilters, false)) == null) {
+            while ((devices = searchDevices(logger, client, searchFilters, false, candidates)).isEmpty()) {
                 if (retries-- < 0) {
-                    logger.info(String.format("Flashing device failed, retried %d time%s but no device found", descriptor.getFlashRetries(), descriptor.getFlashRetries().equals(1) ? "" : "s"));
+                    logger.info("Flashing device failed, retried %d time%s but no device found", descriptor.getFlashRetries(), descriptor.getFlashRetries().equals(1) ? "" : "s");
                     throw new IOException("Device flashing failed");
                 }
                 //if not matching device is not found run flash project
+                long flashStarted = System.currentTimeMillis();
                 try {
-                    flashDevice(build, launcher, logger, client, flashFilters, buildURL, memTotal, flashProjectName);
+                    flashDevice(job, dataDir, logger, client, flashFilters, buildURL, memTotal, flashProjectName);
                 } catch(FlashTimeoutException fte) {
-                    //ignore - retrying
+                    //retry on timeout, unless the build was aborted meanwhile
+                    logger.warn(fte.getMessage());
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException("Build aborted while flashing");
+                    }
+                } finally {
+                    event.addFlash(System.currentTimeMillis() - flashStarted);
                 }
             }
         } else {
-            device = flashDevice(build, launcher, logger, client, flashFilters, buildURL, memTotal, flashProjectName);
+            long flashStarted = System.currentTimeMillis();
+            try {
+                APIDevice device = flashDevice(job, dataDir, logger, client, flashFilters, buildURL, memTotal, flashProjectName);
+                devices = device != null ? Collections.singletonList(device) : Collections.<APIDevice>emptyList();
+            } finally {
+                event.addFlash(System.currentTimeMillis() - flashStarted);
+            }
+        }
+        return devices;
+    }
+
+    private void recordDeviceFailure(TestdroidLogger logger, APIDevice device, DeviceHealthTracker.Failure failure) {
+        if (DeviceHealthTracker.get().recordFailure(device.getId(), device.getDisplayName(), failure)) {
+            logger.warn("Device %s (%d) has been quarantined after repeated failures",
+                    device.getDisplayName(), device.getId());
+        }
+    }
+
+    /**
+     * Release a session after the build has been aborted, reporting how long it took. Failures are logged rather
+     * than thrown so the interruption is still propagated to the caller.
+     */
+    private void releaseAbortedSession(TestdroidLogger logger, APIClient apiClient, APIDeviceSession apiDeviceSession) {
+        long abortedAt = System.currentTimeMillis();
+        try {
+            releaseDeviceSession(logger, apiClient, apiDeviceSession);
+            logger.info("Device session %d released %dms after build was aborted",
+                    apiDeviceSession.getId(), System.currentTimeMillis() - abortedAt);
+        } catch (IOException e) {
+            logger.warn(e, "Failed to release device session %d after abort", apiDeviceSession.getId());
+        }
+    }
+
+    /**
+     * Abort a flash run after the build has been aborted, reporting how long it took.
+     */
+    private void abortFlash(TestdroidLogger logger, APITestRun testRun) {
+        long abortedAt = System.currentTimeMillis();
+        try {
+            testRun.abort();
+            logger.info("Flash run %d aborted %dms after build was aborted",
+                    testRun.getId(), System.currentTimeMillis() - abortedAt);
+        } catch (APIException e) {
+            logger.error(e, "Failed to abort flash run %d: %s", testRun.getId(), e.getMessage());
         }
-        return device;
     }
-    private void releaseDeviceSession(TestdroidLogger logger, APIClient apiClient, APIDeviceSession apiDeviceSession) throws IOException {
+
+    void releaseDeviceSession(TestdroidLogger logger, APIClient apiClient, APIDeviceSession apiDeviceSession) throws IOException {
+        SessionLeaseRenewer.get().cancel(apiDeviceSession.getId());
         logger.info("Releasing device session");
         try {
             apiClient.post(String.format("/me/device-sessions/%d/release", apiDeviceSession.getId()), null, null);
@@ -437,22 +765,38 @@ public class DeviceSessionWrapper extends BuildWrapper {
             envVars.putAll(build.getBuildVariables());
             return Util.replaceMacro(macro, envVars);
         } catch (IOException e) {
-            LOGGER.log(Level.SEVERE, "Failed to apply macro " + macro, e);
+            new TestdroidLogger(listener).error(e, "Failed to apply macro %s", macro);
         }
         return macro;
     }
     /**
      * Run "flash" project and wait until it has completed
+     * <p/>
+     * Waits for a slot from the {@link FlashScheduler} first, so only a limited number of devices matching the same
+     * filters are flashed at once.
      * @return
      */
-    public APIDevice flashDevice(AbstractBuild build, Launcher launcher, TestdroidLogger logger, APIClient client, ArrayList<DeviceFilter> filters, String buildURL, String memTotal, String flashProjectName) throws APIException, IOException, InterruptedException, FlashTimeoutException {
+    public APIDevice flashDevice(String job, FilePath dataDir, TestdroidLogger logger, APIClient client, ArrayList<DeviceFilter> filters, String buildURL, String memTotal, String flashProjectName) throws APIException, IOException, InterruptedException, FlashTimeoutException {
+        DescriptorImpl descriptor = (DescriptorImpl) Jenkins.getInstance().getDescriptor(getClass());
+        //looked up before taking a slot, so a slow image server doesn't hold up other flashes
+        long imageSize = FlashDurationModel.getImageSize(buildURL);
+        FlashScheduler.Slot slot = FlashScheduler.get().acquire(FlashScheduler.getGroupKey(filters, descriptor.getFlashLabelGroup()),
+                job, getFlashPriorityValue(), descriptor.getFlashConcurrency(), logger);
+        try {
+            return runFlashProject(dataDir, logger, client, filters, buildURL, imageSize, memTotal, flashProjectName);
+        } finally {
+            logger.withRun(null);
+            slot.release();
+        }
+    }
+
+    private APIDevice runFlashProject(FilePath dataDir, TestdroidLogger logger, APIClient client, ArrayList<DeviceFilter> filters, String buildURL, long imageSize, String memTotal, String flashProjectName) throws APIException, IOException, InterruptedException, FlashTimeoutException {
         DescriptorImpl descriptor = (DescriptorImpl) Jenkins.getInstance().getDescriptor(getClass());
         APIUser user = client.me();
         APIListResource<APIProject>  projectAPIListResource = user.getProjectsResource(new APIQueryBuilder().search(flashProjectName));
         APIList<APIProject> projectList = projectAPIListResource.getEntity();
         if(projectList == null || projectList.getTotal() <= 0) {
-            logger.error(String.format("Unable find project %s", flashProjectName));
-            LOGGER.log(Level.SEVERE, String.format("Unable find project %s", flashProjectName));
+            logger.error("Unable find project %s", flashProjectName);
             return null;
         }
         APIProject flashProject = projectList.get(0);
@@ -462,74 +806,112 @@ public class DeviceSessionWrapper extends BuildWrapper {
         testRunParams.put("projectId", flashProject.getId().toString());
 
         APITestRun testRun = client.post("/runs", testRunParams, APITestRun.class);
+        logger.withRun(testRun.getId());
 
-        //remove old params
-        APITestRunConfig config = flashProject.getTestRun(testRun.getId()).getConfig();
-        APIListResource<APITestRunParameter>  params = testRun.getConfig().getParameters();
-        for(int i = 0; i < params.getEntity().getTotal(); i++) {
-            APITestRunParameter param = params.getEntity().get(i);
-            config.deleteParameter(param.getId());
-        }
-        config.createParameter(BUILD_URL_PARAM, buildURL);
-        config.createParameter(MEM_TOTAL_PARAM, memTotal);
-
-        APIDevice device = searchDevice(logger, client, filters, true);
+        //abort the run if the build is aborted at any point before it finishes, so the device is freed
+        APIDevice device;
+        String durationKey;
+        long flashStarted;
+        try {
+            //remove old params
+            APITestRunConfig config = flashProject.getTestRun(testRun.getId()).getConfig();
+            APIListResource<APITestRunParameter>  params = testRun.getConfig().getParameters();
+            for(int i = 0; i < params.getEntity().getTotal(); i++) {
+                APITestRunParameter param = params.getEntity().get(i);
+                config.deleteParameter(param.getId());
+            }
+            config.createParameter(BUILD_URL_PARAM, buildURL);
+            config.createParameter(MEM_TOTAL_PARAM, memTotal);
 
-        if(device == null) {
-            throw new IOException("Unable find device!");
-        }
+            device = searchDevice(logger, client, filters, true);
 
-        Map<String,String> usedDevicesId = new HashMap<String, String>();
-        usedDevicesId.put("usedDeviceIds[]",device.getId().toString());
+            if(device == null) {
+                throw new IOException("Unable find device!");
+            }
+            logger.withDevice(device.getId());
+
+            Map<String,String> usedDevicesId = new HashMap<String, String>();
+            usedDevicesId.put("usedDeviceIds[]",device.getId().toString());
+
+            //the global flash timeout is an upper bound, tightened once we know how long this kind of flash takes
+            durationKey = FlashDurationModel.getKey(device.getDisplayName(), flashProjectName, imageSize);
+            FlashDurationModel.Prediction prediction = FlashDurationModel.get().predict(durationKey);
+            long globalFlashTimeout = descriptor.getFlashTimeout() * 1000L;
+            long flashTimeout = globalFlashTimeout;
+            if (prediction != null) {
+                flashTimeout = Math.min(flashTimeout, prediction.getTimeout());
+                logger.info("Expecting flash to take about %ds based on %d previous flashes, timing out after %ds",
+                        prediction.getExpected() / 1000, prediction.getSamples(), flashTimeout / 1000);
+            }
 
-        //start flash
-        String memoryThrottled = Integer.parseInt(memTotal) > 0 ? " and memory throttled at " + memTotal + "MB" : "";
-        logger.info(String.format("Flashing device with %s%s", buildURL, memoryThrottled));
-        client.post(String.format("/runs/%s/start", testRun.getId()), usedDevicesId, APITestRun.class);
-        testRun = flashProject.getTestRun(testRun.getId());
-        long waitUntil = System.currentTimeMillis() + (descriptor.getFlashTimeout() * 1000);
-        while(!testRun.getState().equals(APITestRun.State.FINISHED)) {
-            try {
-                Thread.sleep(POLL_INTERVAL);
+            //start flash
+            String memoryThrottled = Integer.parseInt(memTotal) > 0 ? " and memory throttled at " + memTotal + "MB" : "";
+            logger.info("Flashing device with %s%s", buildURL, memoryThrottled);
+            client.post(String.format("/runs/%s/start", testRun.getId()), usedDevicesId, APITestRun.class);
+            flashStarted = System.currentTimeMillis();
+            //flashing changes the build identifier label
+            DeviceDataCache.get().invalidate(device.getId());
+            testRun = flashProject.getTestRun(testRun.getId());
+            long waitUntil = flashStarted + flashTimeout;
+            while(!testRun.getState().equals(APITestRun.State.FINISHED)) {
+                long now = System.currentTimeMillis();
+                long pollInterval = prediction != null ? prediction.getPollInterval(now - flashStarted) : POLL_INTERVAL;
+                //don't sleep past the timeout
+                Thread.sleep(Math.max(MIN_POLL_INTERVAL, Math.min(pollInterval, waitUntil - now)));
 
                 if (waitUntil <  System.currentTimeMillis()) {
-                    //abort run if it's still in WAITING state
                     testRun.refresh();
-                    if(testRun.getState().equals(APITestRun.State.WAITING)) {
-                        testRun.abort();
+                    APITestRun.State state = testRun.getState();
+                    //abort the run whatever its state, so the flash slot isn't released while the device is still
+                    //being flashed
+                    if(!state.equals(APITestRun.State.FINISHED)) {
+                        try {
+                            testRun.abort();
+                        } catch (APIException e) {
+                            logger.error(e, "Failed to abort timed out flash run %d: %s", testRun.getId(), e.getMessage());
+                        }
+                    }
+                    if(state.equals(APITestRun.State.WAITING)) {
+                        //the run never reached the device, so the delay is Testdroid's queue and not the device
+                        logger.error("Flash run was still waiting to start after %d seconds", flashTimeout / 1000);
+                    } else {
+                        logger.error("Flashing device timed out after %d seconds", flashTimeout / 1000);
+                        FlashDurationModel.get().record(durationKey, flashTimeout);
+                        //a learned timeout only shows this flash was slow, not that the device is faulty
+                        if (flashTimeout >= globalFlashTimeout) {
+                            recordDeviceFailure(logger, device, DeviceHealthTracker.Failure.FLASH_TIMEOUT);
+                        }
                     }
-                    logger.error(String.format("Flashing device timed out after %d seconds", descriptor.getFlashTimeout()));
-                    LOGGER.log(Level.SEVERE, String.format("Flash project didn't finish in %d seconds", descriptor.getFlashTimeout()));
                     throw new FlashTimeoutException("Flashing device timed out");
                 }
                 testRun.refresh();
-            } catch (InterruptedException ie) {
-                testRun.abort();
-                throw ie;
             }
+        } catch (InterruptedException ie) {
+            abortFlash(logger, testRun);
+            throw ie;
         }
         //Check the device runs of the test run. If device run failed download logs.
         APIListResource<APIDeviceRun> deviceRunAPIListResource = testRun.getDeviceRunsResource();
         APIList<APIDeviceRun> deviceRunList = deviceRunAPIListResource.getEntity();
         if(deviceRunList == null || deviceRunList.getTotal() <= 0) {
-            logger.error(String.format("Can't find device run from test run: %d", testRun.getId()));
+            logger.error("Can't find device run from test run: %d", testRun.getId());
             return null;
         }
 
         for(APIDeviceRun deviceRun : deviceRunList.getData()) {
             if(deviceRun.getRunStatus().equals(APIDeviceRun.RunStatus.FAILED)) {
-                URI workspaceURI = build.getWorkspace().toURI();
+                recordDeviceFailure(logger, device, DeviceHealthTracker.Failure.FLASH_FAILED);
                 String flashLogFileName = String.format("flash-%d.log", deviceRun.getId());
-                String flashLogPath = String.format("%s/%s", workspaceURI.getPath(), flashLogFileName);
-                FilePath flashLogFile = new FilePath(launcher.getChannel(), flashLogPath);
+                FilePath flashLogFile = dataDir.child(flashLogFileName);
                 flashLogFile.copyFrom(client.get(String.format("/device-runs/%d/cluster-logs", deviceRun.getId())));
-                logger.info(String.format("Flash log saved as %s", flashLogFileName));
+                logger.info("Flash log saved as %s", flashLogFile.getRemote());
                 return null;
             }
         }
+        FlashDurationModel.get().record(durationKey, System.currentTimeMillis() - flashStarted);
 
         //Sometimes we return from flashing before the device is available for use
-        waitUntil = System.currentTimeMillis() + 60000;
+        long waitUntil = System.currentTimeMillis() + 60000;
         device.refresh();
 
         while(!device.isOnline() || device.isLocked()) {
@@ -538,8 +920,8 @@ public class DeviceSessionWrapper extends BuildWrapper {
 
             if ( waitUntil <  System.currentTimeMillis())
             {
-                logger.warn(String.format("The device was flashed - device status locked:%b online:%b",
-                        device.isLocked(), device.isOnline()));
+                logger.warn("The device was flashed - device status locked:%b online:%b",
+                        device.isLocked(), device.isOnline());
                 return device;
             }
             device.refresh();
@@ -548,87 +930,159 @@ public class DeviceSessionWrapper extends BuildWrapper {
         return device;
     }
 
-    public APIDevice searchDevice(TestdroidLogger logger, APIClient client, ArrayList<DeviceFilter> filters, boolean lockedDeviceAllowed) throws APIException {
-        logger.info("Searching for devices...");
-        List<Long> labelIds = new ArrayList<Long>();
-
-        for(DeviceFilter f:filters) {
-            logger.info(String.format("[%s: %s]", f.group, f.label));
-            LOGGER.log(Level.INFO, String.format("Looking for label %s: %s", f.group, f.label));
-
-            //get label group
-            APIListResource<APILabelGroup> labelGroupsResource = client
-                    .getLabelGroups(new APIQueryBuilder().search(f.group));
-            APIList<APILabelGroup> labelGroupsList = labelGroupsResource.getEntity();
-            if(labelGroupsList == null || labelGroupsList.getTotal() <= 0) {
-                logger.error(String.format("Label group '%s' not found", f.group));
-                LOGGER.log(Level.WARNING, "Unable to find label group: " + f.group);
-                return null;
-            }
-            APILabelGroup labelGroup = labelGroupsList.get(0);
-
-            //get label
-            APIListResource<APIDeviceProperty> devicePropertiesResource = labelGroup
-                    .getDevicePropertiesResource(new APIQueryBuilder().search(f.label));
-            APIList<APIDeviceProperty> devicePropertiesList = devicePropertiesResource.getEntity();
-            if(devicePropertiesList == null || devicePropertiesList.getTotal() <= 0) {
-                logger.error(String.format("Label '%s' not found", f.label));
-                LOGGER.log(Level.WARNING, "Unable to find label: " + f.label);
-                return null;
+    /**
+     * Look up the device property IDs for all filters at once on the shared label resolver pool.
+     * @param logger
+     * @param client
+     * @param filters
+     * @return property IDs in filter order, or null as soon as any label can't be found
+     * @throws APIException
+     * @throws InterruptedException
+     */
+    private List<Long> resolveLabels(final TestdroidLogger logger, final APIClient client, List<DeviceFilter> filters) throws APIException, InterruptedException {
+        Long[] labelIds = new Long[filters.size()];
+        CompletionService<Long> completionService = new ExecutorCompletionService<Long>(LABEL_RESOLVER);
+        Map<Future<Long>, Integer> lookups = new HashMap<Future<Long>, Integer>();
+        try {
+            for (int i = 0; i < filters.size(); i++) {
+                final DeviceFilter f = filters.get(i);
+                lookups.put(completionService.submit(new Callable<Long>() {
+                    public Long call() throws APIException {
+                        return resolveLabel(logger, client, f);
+                    }
+                }), i);
             }
-            int index = 0;
-            //search for exact match
-            for(APIDeviceProperty deviceProperty : devicePropertiesList.getData()) {
-                if(f.label.equals(deviceProperty.getDisplayName())) {
-                    break;
+            for (int i = 0; i < filters.size(); i++) {
+                Future<Long> lookup = completionService.take();
+                Long labelId;
+                try {
+                    labelId = lookup.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof APIException) {
+                        throw (APIException) e.getCause();
+                    }
+                    throw new RuntimeException(e.getCause());
                 }
-                index++;
+                if (labelId == null) {
+                    return null;
+                }
+                labelIds[lookups.get(lookup)] = labelId;
             }
-            if(devicePropertiesList.getData().size() <= index) {
-                LOGGER.log(Level.WARNING, "Unable to find label: " + f.label);
-                return null;
+        } finally {
+            //stop any lookups still running after a failure or interrupt
+            for (Future<Long> lookup : lookups.keySet()) {
+                lookup.cancel(true);
             }
-            APIDeviceProperty deviceProperty = devicePropertiesList.get(index);
-            labelIds.add(deviceProperty.getId());
+        }
+        return Arrays.asList(labelIds);
+    }
+
+    private Long resolveLabel(TestdroidLogger logger, APIClient client, DeviceFilter f) throws APIException {
+        logger.debug("Looking for label %s: %s", f.group, f.label);
+
+        //get label group
+        APIListResource<APILabelGroup> labelGroupsResource = client
+                .getLabelGroups(new APIQueryBuilder().search(f.group));
+        APIList<APILabelGroup> labelGroupsList = labelGroupsResource.getEntity();
+        if(labelGroupsList == null || labelGroupsList.getTotal() <= 0) {
+            logger.error("Label group '%s' not found", f.group);
+            return null;
+        }
+        APILabelGroup labelGroup = labelGroupsList.get(0);
+
+        //get label
+        APIListResource<APIDeviceProperty> devicePropertiesResource = labelGroup
+                .getDevicePropertiesResource(new APIQueryBuilder().search(f.label));
+        APIList<APIDeviceProperty> devicePropertiesList = devicePropertiesResource.getEntity();
+        if(devicePropertiesList == null || devicePropertiesList.getTotal() <= 0) {
+            logger.error("Label '%s' not found", f.label);
+            return null;
+        }
+        int index = 0;
+        //search for exact match
+        for(APIDeviceProperty deviceProperty : devicePropertiesList.getData()) {
+            if(f.label.equals(deviceProperty.getDisplayName())) {
+                break;
+            }
+            index++;
+        }
+        if(devicePropertiesList.getData().size() <= index) {
+            logger.error("Label '%s' not found", f.label);
+            return null;
+        }
+        return devicePropertiesList.get(index).getId();
+    }
+
+    public APIDevice searchDevice(TestdroidLogger logger, APIClient client, ArrayList<DeviceFilter> filters, boolean lockedDeviceAllowed) throws APIException, InterruptedException {
+        List<APIDevice> devices = searchDevices(logger, client, filters, lockedDeviceAllowed, 1);
+        return devices.isEmpty() ? null : devices.get(0);
+    }
+
+    /**
+     * Search for available devices matching the filters.
+     * @param logger
+     * @param client
+     * @param filters
+     * @param lockedDeviceAllowed return a locked device if no unlocked device can be found
+     * @param limit maximum number of devices to return
+     * @return online, unlocked devices in random order, or a single locked device
+     * @throws APIException
+     * @throws InterruptedException
+     */
+    public List<APIDevice> searchDevices(TestdroidLogger logger, APIClient client, ArrayList<DeviceFilter> filters, boolean lockedDeviceAllowed, int limit) throws APIException, InterruptedException {
+        List<APIDevice> selected = new ArrayList<APIDevice>();
+        logger.info("Searching for devices...");
+        for(DeviceFilter f:filters) {
+            logger.info("[%s: %s]", f.group, f.label);
+        }
+        List<Long> labelIds = resolveLabels(logger, client, filters);
+        if(labelIds == null) {
+            return selected;
         }
 
         APIListResource<APIDevice> deviceListResource = null;
         if(labelIds.size() == 0) {
             deviceListResource = client.getDevices(new APIDeviceQueryBuilder().limit(1000));
         } else {
-            LOGGER.log(Level.INFO, String.format("Looking for devices with labels: %s", labelIds.toString()));
+            logger.debug("Looking for devices with labels: %s", labelIds);
             deviceListResource = client.getDevices(new APIDeviceQueryBuilder().limit(1000)
                     .filterWithLabelIds(labelIds.toArray(new Long[labelIds.size()])));
         }
         Integer totalDevices = deviceListResource.getTotal();
-        logger.info(String.format("Found %s device%s", totalDevices, totalDevices.equals(1) ? "" : "s"));
+        logger.info("Found %s device%s", totalDevices, totalDevices.equals(1) ? "" : "s");
         if(deviceListResource == null || deviceListResource.getTotal() == 0) {
-            return null;
+            return selected;
         }
         List<APIDevice> devices = deviceListResource.getEntity().getData();
         //shuffle list of of devices to avoid picking up the same device always
         Collections.shuffle(devices);
 
-        //get the first online device with specific label
+        //get the first online devices with specific label
         //if lockedDeviceAllowed is true then return any locked device if unlocked can't be found
         APIDevice lockedDevice = null;
 
+        DeviceHealthTracker health = DeviceHealthTracker.get();
         for (APIDevice d : devices) {
-            if(d.isOnline() && !d.isLocked()) {
-                logger.info(String.format("Selected device %s (%d)", d.getDisplayName(), d.getId()));
-                LOGGER.log(Level.INFO, String.format("Selected device %s (%d)", d.getDisplayName(), d.getId()));
-                return d;
+            if(health.isQuarantined(d.getId())) {
+                logger.info("Skipping quarantined device %s (%d)", d.getDisplayName(), d.getId());
+            } else if(d.isOnline() && !d.isLocked()) {
+                logger.info("Selected device %s (%d)", d.getDisplayName(), d.getId());
+                selected.add(d);
+                if(selected.size() >= limit) {
+                    break;
+                }
             } else if(d.isOnline() && d.isLocked()) {
                 lockedDevice = d;
             }
         }
-        if(lockedDeviceAllowed) {
-            logger.info(String.format("Selected (locked) device %s (%d)", lockedDevice.getDisplayName(), lockedDevice.getId()));
-            return lockedDevice;
+        if(selected.isEmpty() && lockedDeviceAllowed && lockedDevice != null) {
+            logger.info("Selected (locked) device %s (%d)", lockedDevice.getDisplayName(), lockedDevice.getId());
+            selected.add(lockedDevice);
         }
-        logger.info("No available devices were found");
-        LOGGER.log(Level.INFO, String.format("Unable to find any devices with label(s)"));
-        return null;
+        if(selected.isEmpty()) {
+            logger.info("No available devices were found");
+        }
+        return selected;
     }
 
     public String getBuildURL() {
@@ -647,7 +1101,22 @@ public class DeviceSessionWrapper extends BuildWrapper {
         return flashProjectName != null ? flashProjectName : DEFAULT_FLASH_PROJECT_NAME;
     }
 
-    private JSONObject getProxy(String type, APIClient client, APIDeviceSession session) throws IOException, InterruptedException {
+    public String getFlashPriority() {
+        return flashPriority;
+    }
+
+    private int getFlashPriorityValue() {
+        if (flashPriority == null || flashPriority.trim().isEmpty()) {
+            return DEFAULT_FLASH_PRIORITY;
+        }
+        try {
+            return Integer.parseInt(flashPriority.trim());
+        } catch (NumberFormatException e) {
+            return DEFAULT_FLASH_PRIORITY;
+        }
+    }
+
+    private JSONObject getProxy(String type, TestdroidLogger logger, APIClient client, APIDeviceSession session) throws IOException, InterruptedException {
         int tmp = 0;
         try {
             String response;
@@ -656,7 +1125,8 @@ public class DeviceSessionWrapper extends BuildWrapper {
             String proxyURL = String.format("/proxy-plugin/proxies?where=%s", URLEncoder.encode(String.format(queryTemplate, type, session.getId()), "UTF-8"));
             while((response = IOUtils.toString(client.get(proxyURL))) != null) {
 
-                LOGGER.log(Level.WARNING, "Testdroid " + type + " proxy response: " + response + " URL: " + proxyURL);
+                logger.throttled(TestdroidLogger.Level.DEBUG, type + " proxy", POLL_LOG_INTERVAL,
+                        "Testdroid %s proxy response: %s URL: %s", type, response, proxyURL);
 
                 proxyEntries = (JSONArray) JSONSerializer.toJSON(response);
                 if (proxyEntries.isEmpty()) {
@@ -665,7 +1135,7 @@ public class DeviceSessionWrapper extends BuildWrapper {
                         tmp += POLL_INTERVAL;
                         continue;
                     }
-                    throw new IOException("Failed to get proxy resource");
+                    throw new ProxyTimeoutException("Failed to get proxy resource");
                 }
                 return proxyEntries.getJSONObject(0);
             }
@@ -687,7 +1157,12 @@ public class DeviceSessionWrapper extends BuildWrapper {
         Integer flashTimeout;
         Integer flashRetries;
         Integer sessionTimeout;
+        Integer sessionLease;
+        Integer speculativeSessions;
+        Integer flashConcurrency;
+        String flashLabelGroup;
         Boolean skipFlash;
+        Boolean compactDeviceData;
 
 
         public DescriptorImpl() {
@@ -721,7 +1196,24 @@ public class DeviceSessionWrapper extends BuildWrapper {
             } catch (NumberFormatException e) {
                 this.sessionTimeout = DEFAULT_SESSION_TIMEOUT;
             }
+            try {
+                this.sessionLease = new Integer(json.getString("sessionLease"));
+            } catch (NumberFormatException e) {
+                this.sessionLease = DEFAULT_SESSION_LEASE;
+            }
+            try {
+                this.speculativeSessions = new Integer(json.getString("speculativeSessions"));
+            } catch (NumberFormatException e) {
+                this.speculativeSessions = DEFAULT_SPECULATIVE_SESSIONS;
+            }
+            try {
+                this.flashConcurrency = new Integer(json.getString("flashConcurrency"));
+            } catch (NumberFormatException e) {
+                this.flashConcurrency = DEFAULT_FLASH_CONCURRENCY;
+            }
+            this.flashLabelGroup = json.getString("flashLabelGroup");
             this.skipFlash = json.getBoolean("skipFlash");
+            this.compactDeviceData = json.getBoolean("compactDeviceData");
             save();
             return true;
         }
@@ -755,10 +1247,30 @@ public class DeviceSessionWrapper extends BuildWrapper {
             return sessionTimeout != null ? sessionTimeout : DEFAULT_SESSION_TIMEOUT;
         }
 
+        public Integer getSessionLease() {
+            return sessionLease != null ? sessionLease : DEFAULT_SESSION_LEASE;
+        }
+
+        public Integer getSpeculativeSessions() {
+            return speculativeSessions != null ? speculativeSessions : DEFAULT_SPECULATIVE_SESSIONS;
+        }
+
+        public Integer getFlashConcurrency() {
+            return flashConcurrency != null ? flashConcurrency : DEFAULT_FLASH_CONCURRENCY;
+        }
+
+        public String getFlashLabelGroup() {
+            return flashLabelGroup;
+        }
+
         public Boolean getSkipFlash() {
             return skipFlash;
         }
 
+        public boolean getCompactDeviceData() {
+            return compactDeviceData != null && compactDeviceData;
+        }
+
         public FormValidation doCheckBuildURL(@QueryParameter String value) throws IOException, ServletException {
             if (value == null || value.trim().isEmpty()) {
                 return FormValidation.error("Build URL is mandatory");
@@ -845,6 +1357,58 @@ public class DeviceSessionWrapper extends BuildWrapper {
             }
         }
 
+        public FormValidation doCheckSessionLease(@QueryParameter String value) throws IOException, ServletException {
+            try {
+                Integer sessionLease = Integer.parseInt(value);
+                if (sessionLease == 0 || sessionLease >= SessionLeaseRenewer.MIN_SESSION_LEASE) {
+                    return FormValidation.ok();
+                } else {
+                    return FormValidation.error(String.format("Session lease must be 0 or at least %d",
+                            SessionLeaseRenewer.MIN_SESSION_LEASE));
+                }
+            } catch (NumberFormatException e) {
+                return FormValidation.error("Session lease must be a number");
+            }
+        }
+
+        public FormValidation doCheckSpeculativeSessions(@QueryParameter String value) throws IOException, ServletException {
+            try {
+                Integer speculativeSessions = Integer.parseInt(value);
+                if (speculativeSessions > 0) {
+                    return FormValidation.ok();
+                } else {
+                    return FormValidation.error("Speculative sessions must be greater than 0");
+                }
+            } catch (NumberFormatException e) {
+                return FormValidation.error("Speculative sessions must be a number");
+            }
+        }
+
+        public FormValidation doCheckFlashConcurrency(@QueryParameter String value) throws IOException, ServletException {
+            try {
+                Integer flashConcurrency = Integer.parseInt(value);
+                if (flashConcurrency >= 0) {
+                    return FormValidation.ok();
+                } else {
+                    return FormValidation.error("Concurrent flashes must be 0 or greater");
+                }
+            } catch (NumberFormatException e) {
+                return FormValidation.error("Concurrent flashes must be a number");
+            }
+        }
+
+        public FormValidation doCheckFlashPriority(@QueryParameter String value) throws IOException, ServletException {
+            if (value == null || value.trim().isEmpty()) {
+                return FormValidation.ok();
+            }
+            try {
+                Integer.parseInt(value.trim());
+                return FormValidation.ok();
+            } catch (NumberFormatException e) {
+                return FormValidation.error("Flash priority must be a number");
+            }
+        }
+
         public FormValidation doCheckSessionTimeout(@QueryParameter String value) throws IOException, ServletException {
             try {
                 Integer flashTimeout = Integer.parseInt(value);
@@ -0,0 +1,213 @@
+package jenkins.plugins.testdroid;
+
+import hudson.ProxyConfiguration;
+import hudson.XmlFile;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Learns how long flashing takes from recent flashes, keyed by device model, flash project and image size. Flashes that
+ * time out count as taking the timeout, so a timeout learned from unusually quick flashes relaxes again.
+ * <p/>
+ * Predictions are used to poll the flash run sparsely while it is expected to be running and frequently around when it
+ * should finish, and to time out flashes that take far longer than usual without waiting for the global flash timeout.
+ * Observed durations are kept in testdroid-flash-durations.xml in the Jenkins home directory.
+ */
+public class FlashDurationModel {
+
+    private static final Logger LOGGER = Logger.getLogger(FlashDurationModel.class.getName());
+
+    private static final FlashDurationModel INSTANCE = new FlashDurationModel();
+
+    private final static String FILENAME = "testdroid-flash-durations.xml";
+
+    //durations kept per key
+    private final static int MAX_SAMPLES = 50;
+    //durations needed before predicting
+    private final static int MIN_SAMPLES = 5;
+
+    //percentile of observed durations used for the timeout, and the margin allowed on top of it
+    private final static double TIMEOUT_PERCENTILE = 95;
+    private final static double TIMEOUT_MARGIN = 1.5;
+    //shortest learned timeout, so a run of quick flashes can't time out ordinary ones
+    private final static long MIN_TIMEOUT = 5*60*1000;  //5mins
+
+    //shortest wait between polls as the flash approaches its expected finish
+    private final static int FINISHING_POLL_INTERVAL = 2*1000;
+    private final static int MAX_POLL_INTERVAL = 60*1000;
+    private final static int OVERDUE_POLL_INTERVAL = 5*1000;
+
+    private final static int IMAGE_SIZE_TIMEOUT = 10*1000;
+
+    private Map<String, LinkedList<Long>> samples = new HashMap<String, LinkedList<Long>>();
+
+    private transient boolean loaded = false;
+
+    public static FlashDurationModel get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param deviceModel
+     * @param flashProjectName
+     * @param imageSize size of the build image in bytes, or a negative value if unknown
+     * @return key grouping flashes expected to take a similar time
+     */
+    public static String getKey(String deviceModel, String flashProjectName, long imageSize) {
+        //images within a factor of two of each other flash in a similar time
+        String size = imageSize > 0 ? Integer.toString(64 - Long.numberOfLeadingZeros(imageSize / (1024*1024))) : "unknown";
+        return String.format("%s|%s|%s", deviceModel, flashProjectName, size);
+    }
+
+    /**
+     * Look up the size of the build image without downloading it.
+     * @param buildURL
+     * @return size in bytes, or -1 if it can't be determined
+     */
+    public static long getImageSize(String buildURL) {
+        try {
+            URLConnection connection = ProxyConfiguration.open(new URL(buildURL));
+            connection.setConnectTimeout(IMAGE_SIZE_TIMEOUT);
+            connection.setReadTimeout(IMAGE_SIZE_TIMEOUT);
+            if (connection instanceof HttpURLConnection) {
+                ((HttpURLConnection) connection).setRequestMethod("HEAD");
+            }
+            try {
+                //parsed rather than using getContentLength, which can't represent images over 2GB
+                String length = connection.getHeaderField("Content-Length");
+                return length != null ? Long.parseLong(length.trim()) : -1;
+            } catch (NumberFormatException e) {
+                return -1;
+            } finally {
+                if (connection instanceof HttpURLConnection) {
+                    ((HttpURLConnection) connection).disconnect();
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Unable to determine size of " + buildURL, e);
+            return -1;
+        }
+    }
+
+    /**
+     * @param key
+     * @return prediction based on previous flashes, or null if there haven't been enough
+     */
+    public synchronized Prediction predict(String key) {
+        load();
+        return getPrediction(samples.get(key));
+    }
+
+    static Prediction getPrediction(List<Long> durations) {
+        if (durations == null || durations.size() < MIN_SAMPLES) {
+            return null;
+        }
+        List<Long> sorted = new ArrayList<Long>(durations);
+        Collections.sort(sorted);
+        long timeout = Math.max(MIN_TIMEOUT, (long) (getPercentile(sorted, TIMEOUT_PERCENTILE) * TIMEOUT_MARGIN));
+        return new Prediction(getPercentile(sorted, 50), timeout, sorted.size());
+    }
+
+    /**
+     * Record the duration of a flash, or the timeout if it timed out.
+     * @param key
+     * @param millis
+     */
+    public synchronized void record(String key, long millis) {
+        load();
+        LinkedList<Long> durations = samples.get(key);
+        if (durations == null) {
+            durations = new LinkedList<Long>();
+            samples.put(key, durations);
+        }
+        durations.addLast(millis);
+        while (durations.size() > MAX_SAMPLES) {
+            durations.removeFirst();
+        }
+        try {
+            getConfigFile().write(this);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save flash durations", e);
+        }
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        XmlFile file = getConfigFile();
+        if (file.exists()) {
+            try {
+                file.unmarshal(this);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load flash durations", e);
+            }
+        }
+        if (samples == null) {
+            samples = new HashMap<String, LinkedList<Long>>();
+        }
+    }
+
+    private static long getPercentile(List<Long> sorted, double percentile) {
+        int index = (int) Math.ceil(sorted.size() * percentile / 100.0) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+    }
+
+    private static XmlFile getConfigFile() {
+        return new XmlFile(new File(Jenkins.getInstance().getRootDir(), FILENAME));
+    }
+
+    /**
+     * Expected duration and timeout for a flash.
+     */
+    public static class Prediction {
+        private final long expected;
+        private final long timeout;
+        private final int samples;
+
+        Prediction(long expected, long timeout, int samples) {
+            this.expected = expected;
+            this.timeout = timeout;
+            this.samples = samples;
+        }
+
+        public long getExpected() {
+            return expected;
+        }
+
+        public long getTimeout() {
+            return timeout;
+        }
+
+        public int getSamples() {
+            return samples;
+        }
+
+        /**
+         * Wait long while the flash is far from finishing, halving the wait as the expected finish approaches.
+         * @param elapsed time since the flash was started
+         * @return milliseconds to wait before polling again
+         */
+        public long getPollInterval(long elapsed) {
+            long remaining = expected - elapsed;
+            if (remaining <= 0) {
+                return OVERDUE_POLL_INTERVAL;
+            }
+            return Math.max(FINISHING_POLL_INTERVAL, Math.min(MAX_POLL_INTERVAL, remaining / 2));
+        }
+    }
+}
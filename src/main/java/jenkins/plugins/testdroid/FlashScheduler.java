@@ -0,0 +1,261 @@
+package jenkins.plugins.testdroid;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Controller-wide gate limiting how many flash runs may be in progress at once.
+ * <p/>
+ * Flashes are grouped by the value of a configured label group in their device filters, typically the device model, so
+ * jobs drawing from the same devices with different additional filters share a limit. Without a configured label
+ * group, or if the filters don't include it, flashes are grouped by their whole filter set. Each group allows a
+ * limited number of concurrent flashes. Waiting builds are served by job priority (highest first), then by how many flashes their job
+ * already holds so a single busy job can't starve the others, and finally in arrival order.
+ */
+public class FlashScheduler {
+
+    private static final FlashScheduler INSTANCE = new FlashScheduler();
+
+    //how often to report queue position while waiting for a slot
+    private final static int REPORT_INTERVAL = 60*1000;  //1min
+
+    private final Map<String, Group> groups = new HashMap<String, Group>();
+    private final Map<String, Integer> activeByJob = new HashMap<String, Integer>();
+    private long sequence = 0;
+
+    FlashScheduler() {
+    }
+
+    public static FlashScheduler get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Build the key identifying the flash group: the filter on the given label group, or all filters if there is none.
+     * @param filters
+     * @param labelGroup label group whose value decides the flash group, or null to use all filters
+     * @return filters as "group: label" pairs in a stable order
+     */
+    public static String getGroupKey(List<DeviceFilter> filters, String labelGroup) {
+        if (filters != null && labelGroup != null && !labelGroup.trim().isEmpty()) {
+            for (DeviceFilter f : filters) {
+                if (labelGroup.trim().equalsIgnoreCase(f.group)) {
+                    return f.group + ": " + f.label;
+                }
+            }
+        }
+        return getGroupKey(filters);
+    }
+
+    /**
+     * Build the key identifying a set of device filters.
+     * @param filters
+     * @return filters as "group: label" pairs in a stable order
+     */
+    public static String getGroupKey(List<DeviceFilter> filters) {
+        if (filters == null || filters.isEmpty()) {
+            return "all devices";
+        }
+        List<String> parts = new ArrayList<String>();
+        for (DeviceFilter f : filters) {
+            parts.add(f.group + ": " + f.label);
+        }
+        Collections.sort(parts);
+        StringBuilder key = new StringBuilder();
+        for (String part : parts) {
+            if (key.length() > 0) {
+                key.append(", ");
+            }
+            key.append(part);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Wait until a flash slot is available in the group.
+     * @param groupKey
+     * @param job full name of the job requesting the flash
+     * @param priority higher values are served first
+     * @param limit maximum concurrent flashes in the group, 0 for no limit
+     * @param logger
+     * @return the acquired slot, which must be released once flashing has completed
+     * @throws InterruptedException
+     */
+    public Slot acquire(String groupKey, String job, int priority, int limit, TestdroidLogger logger)
+            throws InterruptedException {
+        long start = System.currentTimeMillis();
+        boolean queued = false;
+        Group group;
+        Ticket ticket;
+        synchronized (this) {
+            group = groups.get(groupKey);
+            if (group == null) {
+                group = new Group();
+                groups.put(groupKey, group);
+            }
+            group.limit = limit;
+            ticket = new Ticket(job, priority, sequence++);
+            group.waiting.add(ticket);
+        }
+        long nextReport = 0;
+        try {
+            while (true) {
+                //queue state is captured under the lock but reported after leaving it
+                boolean report = false;
+                int active = 0;
+                int position = 0;
+                int waiting = 0;
+                long now;
+                synchronized (this) {
+                    //a notification can win over an interrupt, which must still stop the build from taking a slot
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                    if (isNext(group, ticket)) {
+                        group.waiting.remove(ticket);
+                        group.active++;
+                        Integer jobActive = activeByJob.get(job);
+                        activeByJob.put(job, jobActive == null ? 1 : jobActive + 1);
+                        //others may now be eligible if the limit has headroom
+                        notifyAll();
+                        break;
+                    }
+                    now = System.currentTimeMillis();
+                    if (now >= nextReport) {
+                        report = true;
+                        active = group.active;
+                        position = getPosition(group, ticket);
+                        waiting = group.waiting.size();
+                        nextReport = now + REPORT_INTERVAL;
+                        queued = true;
+                    } else {
+                        wait(nextReport - now);
+                    }
+                }
+                if (report) {
+                    logger.info("Waiting for flash slot [%s]: %d of %d flash%s running, position %d of %d in queue, " +
+                                    "waited %ds", groupKey, active, limit, limit == 1 ? "" : "es", position, waiting,
+                            (now - start) / 1000);
+                }
+            }
+        } catch (InterruptedException e) {
+            synchronized (this) {
+                group.waiting.remove(ticket);
+                //the last slot may have been released while this ticket was leaving
+                if (group.active <= 0 && group.waiting.isEmpty() && groups.get(groupKey) == group) {
+                    groups.remove(groupKey);
+                }
+                notifyAll();
+            }
+            throw e;
+        }
+        long waited = System.currentTimeMillis() - start;
+        if (queued) {
+            logger.info("Acquired flash slot [%s] after %ds", groupKey, waited / 1000);
+        }
+        logger.debug("Flash slot [%s] acquired by %s after %dms", groupKey, job, waited);
+        return new Slot(groupKey, job);
+    }
+
+    private synchronized void release(Slot slot) {
+        Group group = groups.get(slot.groupKey);
+        if (group != null) {
+            group.active--;
+            if (group.active <= 0 && group.waiting.isEmpty()) {
+                groups.remove(slot.groupKey);
+            }
+        }
+        Integer jobActive = activeByJob.get(slot.job);
+        if (jobActive == null || jobActive <= 1) {
+            activeByJob.remove(slot.job);
+        } else {
+            activeByJob.put(slot.job, jobActive - 1);
+        }
+        notifyAll();
+    }
+
+    //builds waiting for a slot in the group
+    synchronized int getQueueLength(String groupKey) {
+        Group group = groups.get(groupKey);
+        return group != null ? group.waiting.size() : 0;
+    }
+
+    synchronized boolean hasGroup(String groupKey) {
+        return groups.containsKey(groupKey);
+    }
+
+    private boolean isNext(Group group, Ticket ticket) {
+        if (group.limit > 0 && group.active >= group.limit) {
+            return false;
+        }
+        return Collections.min(group.waiting, order) == ticket;
+    }
+
+    private int getPosition(Group group, Ticket ticket) {
+        List<Ticket> queue = new ArrayList<Ticket>(group.waiting);
+        Collections.sort(queue, order);
+        return queue.indexOf(ticket) + 1;
+    }
+
+    private int getActive(String job) {
+        Integer active = activeByJob.get(job);
+        return active != null ? active : 0;
+    }
+
+    private final Comparator<Ticket> order = new Comparator<Ticket>() {
+        public int compare(Ticket a, Ticket b) {
+            if (a.priority != b.priority) {
+                return a.priority > b.priority ? -1 : 1;
+            }
+            int activeA = getActive(a.job);
+            int activeB = getActive(b.job);
+            if (activeA != activeB) {
+                return activeA < activeB ? -1 : 1;
+            }
+            return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+        }
+    };
+
+    private static class Group {
+        int limit;
+        int active;
+        final List<Ticket> waiting = new ArrayList<Ticket>();
+    }
+
+    private static class Ticket {
+        final String job;
+        final int priority;
+        final long sequence;
+
+        Ticket(String job, int priority, long sequence) {
+            this.job = job;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+
+    public class Slot {
+        private final String groupKey;
+        private final String job;
+        private boolean released = false;
+
+        private Slot(String groupKey, String job) {
+            this.groupKey = groupKey;
+            this.job = job;
+        }
+
+        public void release() {
+            synchronized (FlashScheduler.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            FlashScheduler.this.release(this);
+        }
+    }
+}
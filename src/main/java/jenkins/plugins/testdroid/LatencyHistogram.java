@@ -0,0 +1,71 @@
+package jenkins.plugins.testdroid;
+
+/**
+ * Fixed-size histogram of durations using logarithmic buckets, so percentiles are accurate to within a few percent
+ * regardless of scale. Histograms with the same layout can be merged by adding their bucket counts.
+ */
+public class LatencyHistogram {
+
+    //each bucket is 5% wider than the previous one
+    private final static double BUCKET_RATIO = 1.05;
+    //enough buckets to cover about three and a half days in milliseconds
+    private final static int BUCKETS = 400;
+
+    private final long[] counts = new long[BUCKETS];
+    private long total;
+    private long max;
+
+    public void record(long millis) {
+        if (millis < 0) {
+            millis = 0;
+        }
+        counts[getBucket(millis)]++;
+        total++;
+        max = Math.max(max, millis);
+    }
+
+    public void merge(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+        max = Math.max(max, other.max);
+    }
+
+    public long getCount() {
+        return total;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return estimated duration in milliseconds, or 0 if nothing has been recorded
+     */
+    public long getPercentile(double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        rank = Math.max(1, Math.min(total, rank));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, getUpperBound(i));
+            }
+        }
+        return max;
+    }
+
+    private static int getBucket(long millis) {
+        int bucket = (int) (Math.log(millis + 1) / Math.log(BUCKET_RATIO));
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    private static long getUpperBound(int bucket) {
+        return (long) Math.pow(BUCKET_RATIO, bucket + 1) - 1;
+    }
+}
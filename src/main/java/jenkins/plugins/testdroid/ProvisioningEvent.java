@@ -0,0 +1,136 @@
+package jenkins.plugins.testdroid;
+
+/**
+ * Timings and counters collected while provisioning a device session for a single build.
+ */
+public class ProvisioningEvent {
+
+    public enum Outcome {
+        SUCCESS, NO_DEVICE, FAILED, ABORTED
+    }
+
+    private final long timestamp;
+    private final String job;
+    private String filters = "";
+    private long searchTime;
+    private long flashTime;
+    private long sessionTime;
+    private long proxyTime;
+    private long totalTime;
+    private int flashCount;
+    private int retryCount;
+    private long deviceId = -1;
+    private Outcome outcome = Outcome.FAILED;
+
+    public ProvisioningEvent(String job) {
+        this(System.currentTimeMillis(), job);
+    }
+
+    ProvisioningEvent(long timestamp, String job) {
+        this.timestamp = timestamp;
+        this.job = job;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getJob() {
+        return job;
+    }
+
+    public String getFilters() {
+        return filters;
+    }
+
+    public void setFilters(String filters) {
+        this.filters = filters;
+    }
+
+    public long getSearchTime() {
+        return searchTime;
+    }
+
+    public void addSearchTime(long millis) {
+        searchTime += millis;
+    }
+
+    public long getFlashTime() {
+        return flashTime;
+    }
+
+    /**
+     * Record a flash run, successful or not.
+     * @param millis time spent flashing, including waiting for a flash slot
+     */
+    public void addFlash(long millis) {
+        flashTime += millis;
+        flashCount++;
+    }
+
+    public long getSessionTime() {
+        return sessionTime;
+    }
+
+    public void addSessionTime(long millis) {
+        sessionTime += millis;
+    }
+
+    public long getProxyTime() {
+        return proxyTime;
+    }
+
+    public void addProxyTime(long millis) {
+        proxyTime += millis;
+    }
+
+    public long getTotalTime() {
+        return totalTime;
+    }
+
+    public int getFlashCount() {
+        return flashCount;
+    }
+
+    public int getRetryCount() {
+        return retryCount;
+    }
+
+    public void setRetryCount(int retryCount) {
+        this.retryCount = retryCount;
+    }
+
+    public long getDeviceId() {
+        return deviceId;
+    }
+
+    public void setDeviceId(long deviceId) {
+        this.deviceId = deviceId;
+    }
+
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    public void setOutcome(Outcome outcome) {
+        this.outcome = outcome;
+    }
+
+    /**
+     * Stop the clock on the time to session.
+     */
+    public void finish() {
+        totalTime = System.currentTimeMillis() - timestamp;
+    }
+
+    void restore(long searchTime, long flashTime, long sessionTime, long proxyTime, long totalTime,
+                 int flashCount, int retryCount) {
+        this.searchTime = searchTime;
+        this.flashTime = flashTime;
+        this.sessionTime = sessionTime;
+        this.proxyTime = proxyTime;
+        this.totalTime = totalTime;
+        this.flashCount = flashCount;
+        this.retryCount = retryCount;
+    }
+}
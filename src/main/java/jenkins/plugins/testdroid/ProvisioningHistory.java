@@ -0,0 +1,471 @@
+package jenkins.plugins.testdroid;
+
+import jenkins.model.Jenkins;
+import org.apache.commons.io.IOUtils;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Controller-wide history of provisioning attempts.
+ * <p/>
+ * Each {@link ProvisioningEvent} is appended as a compact, length-prefixed binary record to a log file in the Jenkins
+ * home directory, on a background thread so builds never wait for it. Once the log reaches {@link #MAX_LOG_SIZE} it is
+ * rotated, keeping a single previous log, so the history is bounded to roughly twice that size. Statistics per job and
+ * per device filter set are updated as events are recorded so the report never has to rescan the log; the totals are
+ * merged from the per-job statistics.
+ */
+public class ProvisioningHistory {
+
+    private static final Logger LOGGER = Logger.getLogger(ProvisioningHistory.class.getName());
+
+    private static final ProvisioningHistory INSTANCE = new ProvisioningHistory();
+
+    private final static String LOG_FILENAME = "testdroid-provisioning.log";
+    private final static int MAX_LOG_SIZE = 16*1024*1024;  //16MB
+
+    private final static byte RECORD_VERSION = 1;
+    //larger lengths can only come from a damaged log
+    private final static int MAX_RECORD_SIZE = 256*1024;  //256KB
+
+    private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "Testdroid provisioning history"));
+
+    //null until first used, resolved from the Jenkins home directory
+    private File logFile;
+
+    private boolean loaded = false;
+    private Map<String, Stats> byJob;
+    private Map<String, Stats> byFilters;
+    private Map<Long, Long> byDevice;
+
+    ProvisioningHistory() {
+    }
+
+    ProvisioningHistory(File logFile) {
+        this.logFile = logFile;
+    }
+
+    public static ProvisioningHistory get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Append the event to the log and include it in the statistics in the background.
+     * @param event
+     */
+    public void record(final ProvisioningEvent event) {
+        WRITER.submit(new Runnable() {
+            public void run() {
+                append(event);
+            }
+        });
+    }
+
+    /**
+     * Append the event to the log and include it in the statistics. Failures are logged rather than thrown, as the
+     * history should never fail a build.
+     * @param event
+     */
+    synchronized void append(ProvisioningEvent event) {
+        load();
+        add(event);
+        File log = getLogFile();
+        FileOutputStream out = null;
+        try {
+            //written with a single call so a crash can at worst leave a partial record at the end
+            out = new FileOutputStream(log, true);
+            out.write(encode(event));
+            out.close();
+            out = null;
+            if (log.length() > MAX_LOG_SIZE) {
+                rotate(log);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to record provisioning event", e);
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * @return totals across all jobs, merged on each call so callers should keep the result rather than call again
+     */
+    public synchronized Stats getOverall() {
+        load();
+        Stats overall = new Stats("Total");
+        for (Stats stats : byJob.values()) {
+            overall.merge(stats);
+        }
+        return overall;
+    }
+
+    /**
+     * @return copies of the statistics per job, which can be read while further events are recorded
+     */
+    public synchronized List<Stats> getJobStats() {
+        load();
+        return sorted(byJob);
+    }
+
+    /**
+     * @return copies of the statistics per set of device filters
+     */
+    public synchronized List<Stats> getFilterStats() {
+        load();
+        return sorted(byFilters);
+    }
+
+    /**
+     * @return sessions started per device, busiest first
+     */
+    public synchronized List<DeviceUsage> getDeviceUsage() {
+        load();
+        long totalSessions = 0;
+        for (Stats stats : byJob.values()) {
+            totalSessions += stats.getSuccesses();
+        }
+        List<DeviceUsage> devices = new ArrayList<DeviceUsage>();
+        for (Map.Entry<Long, Long> entry : byDevice.entrySet()) {
+            devices.add(new DeviceUsage(entry.getKey(), entry.getValue(), totalSessions));
+        }
+        Collections.sort(devices, new Comparator<DeviceUsage>() {
+            public int compare(DeviceUsage a, DeviceUsage b) {
+                return a.sessions == b.sessions ? 0 : (a.sessions > b.sessions ? -1 : 1);
+            }
+        });
+        return devices;
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        byJob = new HashMap<String, Stats>();
+        byFilters = new HashMap<String, Stats>();
+        byDevice = new HashMap<Long, Long>();
+        File log = getLogFile();
+        read(new File(log.getPath() + ".1"));
+        read(log);
+        loaded = true;
+    }
+
+    private void read(File log) {
+        if (!log.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        long position = 0;
+        boolean damaged = false;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(log)));
+            while (position < log.length()) {
+                int length = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_SIZE) {
+                    damaged = true;
+                    break;
+                }
+                byte[] record = new byte[length];
+                in.readFully(record);
+                position += 4 + length;
+                try {
+                    add(decode(record));
+                } catch (IOException e) {
+                    //the framing is intact, so only this record is lost
+                    LOGGER.log(Level.FINE, "Skipping unreadable provisioning record in " + log, e);
+                }
+            }
+        } catch (EOFException e) {
+            //a record truncated by a crash
+            damaged = true;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to read provisioning history from " + log, e);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        if (damaged) {
+            truncate(log, position);
+        }
+    }
+
+    //drop a damaged tail so later records are appended after the last good one
+    private static void truncate(File log, long length) {
+        LOGGER.log(Level.WARNING, "Discarding damaged provisioning history in " + log + " after " + length + " bytes");
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(log, "rw");
+            file.setLength(length);
+            file.close();
+            file = null;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to truncate provisioning history " + log, e);
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    //already failed
+                }
+            }
+        }
+    }
+
+    private void rotate(File log) {
+        File previous = new File(log.getPath() + ".1");
+        if ((previous.exists() && !previous.delete()) || !log.renameTo(previous)) {
+            LOGGER.log(Level.WARNING, "Failed to rotate provisioning history " + log);
+            return;
+        }
+        //drop the statistics from the discarded log
+        loaded = false;
+        load();
+    }
+
+    private void add(ProvisioningEvent event) {
+        getStats(byJob, event.getJob()).add(event);
+        getStats(byFilters, event.getFilters()).add(event);
+        if (event.getOutcome() == ProvisioningEvent.Outcome.SUCCESS && event.getDeviceId() >= 0) {
+            Long sessions = byDevice.get(event.getDeviceId());
+            byDevice.put(event.getDeviceId(), sessions == null ? 1 : sessions + 1);
+        }
+    }
+
+    private static Stats getStats(Map<String, Stats> stats, String name) {
+        Stats s = stats.get(name);
+        if (s == null) {
+            s = new Stats(name);
+            stats.put(name, s);
+        }
+        return s;
+    }
+
+    private static List<Stats> sorted(Map<String, Stats> stats) {
+        List<Stats> list = new ArrayList<Stats>(stats.size());
+        for (Stats s : stats.values()) {
+            list.add(s.copy());
+        }
+        Collections.sort(list, new Comparator<Stats>() {
+            public int compare(Stats a, Stats b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        return list;
+    }
+
+    //length-prefixed record
+    static byte[] encode(ProvisioningEvent event) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeInt(0);
+        out.writeByte(RECORD_VERSION);
+        out.writeLong(event.getTimestamp());
+        out.writeUTF(event.getJob());
+        out.writeUTF(event.getFilters());
+        out.writeInt((int) event.getSearchTime());
+        out.writeInt((int) event.getFlashTime());
+        out.writeInt((int) event.getSessionTime());
+        out.writeInt((int) event.getProxyTime());
+        out.writeInt((int) event.getTotalTime());
+        out.writeShort(event.getFlashCount());
+        out.writeShort(event.getRetryCount());
+        out.writeLong(event.getDeviceId());
+        out.writeByte(event.getOutcome().ordinal());
+        out.close();
+        byte[] bytes = record.toByteArray();
+        int length = bytes.length - 4;
+        bytes[0] = (byte) (length >>> 24);
+        bytes[1] = (byte) (length >>> 16);
+        bytes[2] = (byte) (length >>> 8);
+        bytes[3] = (byte) length;
+        return bytes;
+    }
+
+    static ProvisioningEvent decode(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte version = in.readByte();
+        if (version != RECORD_VERSION) {
+            throw new IOException("Unknown provisioning record version " + version);
+        }
+        ProvisioningEvent event = new ProvisioningEvent(in.readLong(), in.readUTF());
+        event.setFilters(in.readUTF());
+        int searchTime = in.readInt();
+        int flashTime = in.readInt();
+        int sessionTime = in.readInt();
+        int proxyTime = in.readInt();
+        int totalTime = in.readInt();
+        int flashCount = in.readShort();
+        int retryCount = in.readShort();
+        event.restore(searchTime, flashTime, sessionTime, proxyTime, totalTime, flashCount, retryCount);
+        event.setDeviceId(in.readLong());
+        int outcome = in.readByte();
+        ProvisioningEvent.Outcome[] outcomes = ProvisioningEvent.Outcome.values();
+        event.setOutcome(outcome >= 0 && outcome < outcomes.length ? outcomes[outcome] : ProvisioningEvent.Outcome.FAILED);
+        return event;
+    }
+
+    private File getLogFile() {
+        if (logFile == null) {
+            logFile = new File(Jenkins.getInstance().getRootDir(), LOG_FILENAME);
+        }
+        return logFile;
+    }
+
+    /**
+     * Aggregated statistics for a set of provisioning attempts.
+     */
+    public static class Stats {
+        private final String name;
+        private final LatencyHistogram timeToSession = new LatencyHistogram();
+        private long attempts;
+        private long successes;
+        private long withoutFlash;
+        private long flashes;
+        private long retries;
+        private long lastAttempt;
+
+        Stats(String name) {
+            this.name = name;
+        }
+
+        Stats copy() {
+            Stats copy = new Stats(name);
+            copy.merge(this);
+            return copy;
+        }
+
+        void merge(Stats other) {
+            timeToSession.merge(other.timeToSession);
+            attempts += other.attempts;
+            successes += other.successes;
+            withoutFlash += other.withoutFlash;
+            flashes += other.flashes;
+            retries += other.retries;
+            lastAttempt = Math.max(lastAttempt, other.lastAttempt);
+        }
+
+        void add(ProvisioningEvent event) {
+            attempts++;
+            flashes += event.getFlashCount();
+            retries += event.getRetryCount();
+            lastAttempt = Math.max(lastAttempt, event.getTimestamp());
+            if (event.getOutcome() == ProvisioningEvent.Outcome.SUCCESS) {
+                successes++;
+                timeToSession.record(event.getTotalTime());
+                if (event.getFlashCount() == 0) {
+                    withoutFlash++;
+                }
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getAttempts() {
+            return attempts;
+        }
+
+        public long getSuccesses() {
+            return successes;
+        }
+
+        public long getLastAttempt() {
+            return lastAttempt;
+        }
+
+        public LatencyHistogram getTimeToSession() {
+            return timeToSession;
+        }
+
+        public String getP50() {
+            return formatPercentile(50);
+        }
+
+        public String getP90() {
+            return formatPercentile(90);
+        }
+
+        public String getP99() {
+            return formatPercentile(99);
+        }
+
+        /**
+         * @return percentage of sessions started on a device already running the build
+         */
+        public String getCacheHitRate() {
+            return formatPercentage(withoutFlash, successes);
+        }
+
+        public String getSuccessRate() {
+            return formatPercentage(successes, attempts);
+        }
+
+        public String getFlashesPerAttempt() {
+            return attempts > 0 ? String.format("%.2f", (double) flashes / attempts) : "-";
+        }
+
+        public String getRetriesPerAttempt() {
+            return attempts > 0 ? String.format("%.2f", (double) retries / attempts) : "-";
+        }
+
+        private String formatPercentile(double percentile) {
+            if (timeToSession.getCount() == 0) {
+                return "-";
+            }
+            return String.format("%.1fs", timeToSession.getPercentile(percentile) / 1000.0);
+        }
+    }
+
+    /**
+     * Share of the started sessions that were placed on a device.
+     */
+    public static class DeviceUsage {
+        private final long deviceId;
+        private final long sessions;
+        private final long totalSessions;
+
+        DeviceUsage(long deviceId, long sessions, long totalSessions) {
+            this.deviceId = deviceId;
+            this.sessions = sessions;
+            this.totalSessions = totalSessions;
+        }
+
+        public long getDeviceId() {
+            return deviceId;
+        }
+
+        public long getSessions() {
+            return sessions;
+        }
+
+        public String getShare() {
+            return formatPercentage(sessions, totalSessions);
+        }
+    }
+
+    private static String formatPercentage(long count, long total) {
+        return total > 0 ? String.format("%.1f%%", 100.0 * count / total) : "-";
+    }
+}
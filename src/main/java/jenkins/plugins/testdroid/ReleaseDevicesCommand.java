@@ -0,0 +1,38 @@
+package jenkins.plugins.testdroid;
+
+import hudson.Extension;
+import hudson.cli.CLICommand;
+import hudson.util.StreamTaskListener;
+import jenkins.model.Jenkins;
+import org.kohsuke.args4j.Argument;
+
+/**
+ * Releases every device in a batch reserved with {@link ReserveDevicesCommand}.
+ */
+@Extension
+public class ReleaseDevicesCommand extends CLICommand {
+
+    @Argument(metaVar = "BATCH", usage = "Batch ID printed when the devices were reserved", required = true)
+    public String batchId;
+
+    @Override
+    public String getName() {
+        return "testdroid-release";
+    }
+
+    @Override
+    public String getShortDescription() {
+        return "Releases a batch of Testdroid devices";
+    }
+
+    @Override
+    protected int run() throws Exception {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        TestdroidLogger logger = new TestdroidLogger(new StreamTaskListener(stderr));
+        if (DeviceBatchManager.get().release(logger, batchId) == null) {
+            stderr.println("No such batch: " + batchId);
+            return 1;
+        }
+        return 0;
+    }
+}
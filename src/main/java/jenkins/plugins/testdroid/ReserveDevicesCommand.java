@@ -0,0 +1,60 @@
+package jenkins.plugins.testdroid;
+
+import hudson.Extension;
+import hudson.cli.CLICommand;
+import hudson.util.StreamTaskListener;
+import jenkins.model.Jenkins;
+import org.kohsuke.args4j.Option;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reserves a batch of devices and prints their connection details as JSON, see {@link DeviceBatchManager}.
+ */
+@Extension
+public class ReserveDevicesCommand extends CLICommand {
+
+    @Option(name = "-build-url", usage = "URL of the build to flash", required = true)
+    public String buildURL;
+
+    @Option(name = "-count", usage = "Number of devices to reserve")
+    public int count = 1;
+
+    @Option(name = "-mem-total", usage = "Memory to allocate on the devices in MB")
+    public String memTotal;
+
+    @Option(name = "-filter", metaVar = "GROUP:LABEL", usage = "Device filter, may be given more than once")
+    public List<String> filters = new ArrayList<String>();
+
+    @Option(name = "-flash-project", usage = "Alternative flash project")
+    public String flashProject;
+
+    @Option(name = "-flash-priority", usage = "Priority when waiting for a flash slot")
+    public String flashPriority;
+
+    @Override
+    public String getName() {
+        return "testdroid-reserve";
+    }
+
+    @Override
+    public String getShortDescription() {
+        return "Reserves a batch of Testdroid devices and prints their connection details as JSON";
+    }
+
+    @Override
+    protected int run() throws Exception {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        ArrayList<DeviceFilter> deviceFilters = new ArrayList<DeviceFilter>();
+        for (String filter : filters) {
+            deviceFilters.add(DeviceBatchManager.parseFilter(filter));
+        }
+        //progress goes to stderr so stdout is only the JSON
+        TestdroidLogger logger = new TestdroidLogger(new StreamTaskListener(stderr));
+        DeviceBatchManager.Batch batch = DeviceBatchManager.get().reserve(logger, count, buildURL, memTotal,
+                deviceFilters, flashProject, flashPriority);
+        stdout.println(batch.toJSON().toString(2));
+        return batch.isComplete() ? 0 : 1;
+    }
+}
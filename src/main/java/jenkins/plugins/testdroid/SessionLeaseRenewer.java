@@ -0,0 +1,196 @@
+package jenkins.plugins.testdroid;
+
+import com.testdroid.api.APIClient;
+import com.testdroid.api.APIException;
+import com.testdroid.api.model.APIDeviceSession;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps device sessions alive for as long as their builds are running.
+ * <p/>
+ * Sessions are opened with a short server-side timeout (the lease) rather than the maximum session duration. A single
+ * controller-wide thread extends the timeout of every active session before its lease runs out, renewing the sessions
+ * closest to expiry first. If the build ends without releasing its session, or the controller goes away,
+ * renewals stop and Testdroid frees the device once the lease expires.
+ */
+public class SessionLeaseRenewer {
+
+    private static final Logger LOGGER = Logger.getLogger(SessionLeaseRenewer.class.getName());
+
+    private static final SessionLeaseRenewer INSTANCE = new SessionLeaseRenewer();
+
+    private final static int RENEW_INTERVAL = 15*1000;  //15secs
+    //leases are renewed once this little remains, so a renewal made up to an interval late can still be retried
+    private final static int RENEW_MARGIN = 3*RENEW_INTERVAL;  //45secs
+    //shortest lease that isn't due for renewal as soon as it is granted
+    final static int MIN_SESSION_LEASE = 2*RENEW_MARGIN/1000;  //90secs
+
+    private final Map<Long, Lease> leases = new HashMap<Long, Lease>();
+
+    private ScheduledExecutorService scheduler;
+
+    public static SessionLeaseRenewer get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Start renewing the lease of a newly requested session.
+     * @param logger build logger for renewal failures
+     * @param wrapper creates a new API client if renewing with the current one fails
+     * @param client
+     * @param session
+     * @param leaseTimeout seconds each renewal extends the session by, at least {@link #MIN_SESSION_LEASE}
+     * @param maxTimeout maximum seconds the session may last in total
+     */
+    public synchronized void register(TestdroidLogger logger, DeviceSessionWrapper wrapper, APIClient client,
+                                      APIDeviceSession session, int leaseTimeout, int maxTimeout) {
+        long now = System.currentTimeMillis();
+        leases.put(session.getId(), new Lease(logger, wrapper, client, session.getId(), now,
+                Math.max(leaseTimeout, MIN_SESSION_LEASE), maxTimeout));
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(
+                    new NamingThreadFactory(new DaemonThreadFactory(), "Testdroid session lease renewer"));
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    renewDue();
+                }
+            }, RENEW_INTERVAL, RENEW_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop renewing the lease, for example because the session is being released.
+     * @param sessionId
+     */
+    public synchronized void cancel(long sessionId) {
+        leases.remove(sessionId);
+    }
+
+    private void renewDue() {
+        long now = System.currentTimeMillis();
+        List<Lease> due = new ArrayList<Lease>();
+        synchronized (this) {
+            for (Lease lease : leases.values()) {
+                if (lease.isDue(now)) {
+                    due.add(lease);
+                }
+            }
+        }
+        Collections.sort(due, new Comparator<Lease>() {
+            public int compare(Lease a, Lease b) {
+                return a.expiresAt < b.expiresAt ? -1 : (a.expiresAt == b.expiresAt ? 0 : 1);
+            }
+        });
+        for (Lease lease : due) {
+            synchronized (this) {
+                if (!leases.containsKey(lease.sessionId)) {
+                    continue;
+                }
+            }
+            try {
+                lease.renew();
+            } catch (APIException e) {
+                lease.logger.warn("Failed to renew lease of device session %d: %s", lease.sessionId, e.getMessage());
+                renewWithNewClient(lease);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to renew lease of device session " + lease.sessionId, e);
+                renewWithNewClient(lease);
+            }
+            if (lease.isFinal() || lease.expiresAt < System.currentTimeMillis()) {
+                cancel(lease.sessionId);
+            }
+        }
+    }
+
+    //recreate the API client as its tokens may have expired during a long build, before giving up on renewals
+    private void renewWithNewClient(Lease lease) {
+        try {
+            lease.client = lease.wrapper.getAPIClient(lease.logger);
+            lease.renew();
+            return;
+        } catch (APIException e) {
+            lease.logger.warn("Failed to renew lease of device session %d with a new API client: %s", lease.sessionId,
+                    e.getMessage());
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to renew lease of device session " + lease.sessionId +
+                    " with a new API client", e);
+        }
+        extendToMax(lease);
+    }
+
+    //stop relying on renewals once they have failed, so the build keeps its device for the full session timeout
+    private void extendToMax(Lease lease) {
+        try {
+            lease.extend(lease.maxTimeout);
+            lease.logger.info("Extended device session %d to the session timeout of %ds", lease.sessionId,
+                    lease.maxTimeout);
+        } catch (APIException e) {
+            lease.logger.error("Failed to extend device session %d, it will end in %ds when its lease expires: %s",
+                    lease.sessionId, Math.max(0, lease.expiresAt - System.currentTimeMillis()) / 1000, e.getMessage());
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to extend device session " + lease.sessionId, e);
+            lease.logger.error("Failed to extend device session %d, it will end in %ds when its lease expires",
+                    lease.sessionId, Math.max(0, lease.expiresAt - System.currentTimeMillis()) / 1000);
+        }
+    }
+
+    private static class Lease {
+        final TestdroidLogger logger;
+        final DeviceSessionWrapper wrapper;
+        APIClient client;
+        final long sessionId;
+        final long startedAt;
+        final int leaseTimeout;
+        final int maxTimeout;
+        long expiresAt;
+
+        Lease(TestdroidLogger logger, DeviceSessionWrapper wrapper, APIClient client, long sessionId, long startedAt,
+              int leaseTimeout, int maxTimeout) {
+            this.logger = logger;
+            this.wrapper = wrapper;
+            this.client = client;
+            this.sessionId = sessionId;
+            this.startedAt = startedAt;
+            this.leaseTimeout = leaseTimeout;
+            this.maxTimeout = maxTimeout;
+            this.expiresAt = startedAt + Math.min(leaseTimeout, maxTimeout) * 1000L;
+        }
+
+        //renew once less than half the lease remains, and never later than the renewal margin
+        boolean isDue(long now) {
+            return expiresAt - now < Math.max(leaseTimeout * 500L, RENEW_MARGIN);
+        }
+
+        //the session has been extended to its maximum duration
+        boolean isFinal() {
+            return expiresAt >= startedAt + maxTimeout * 1000L;
+        }
+
+        void renew() throws APIException {
+            long now = System.currentTimeMillis();
+            extend(Math.min((now - startedAt) / 1000 + leaseTimeout, maxTimeout));
+        }
+
+        //set the session timeout, counted from the start of the session
+        void extend(long timeout) throws APIException {
+            Map<String, String> params = new HashMap<String, String>();
+            params.put("timeout", Long.toString(timeout));
+            client.post(String.format("/me/device-sessions/%d", sessionId), params, APIDeviceSession.class);
+            expiresAt = startedAt + timeout * 1000;
+            logger.debug("Renewed lease of device session %d, timeout now %ds", sessionId, timeout);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package jenkins.plugins.testdroid;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import net.sf.json.JSON;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Controller page reporting on Testdroid device provisioning and quarantined devices.
+ * <p/>
+ * Also exposes the reserve and release endpoints for reserving batches of devices outside of builds, see
+ * {@link DeviceBatchManager}.
+ */
+@Extension
+public class TestdroidAction implements RootAction {
+
+    public String getIconFileName() {
+        return "graph.png";
+    }
+
+    public String getDisplayName() {
+        return "Testdroid";
+    }
+
+    public String getUrlName() {
+        return "testdroid";
+    }
+
+    public ProvisioningHistory getHistory() {
+        return ProvisioningHistory.get();
+    }
+
+    public DeviceHealthTracker getHealth() {
+        return DeviceHealthTracker.get();
+    }
+
+    public List<DeviceBatchManager.Batch> getBatches() {
+        return DeviceBatchManager.get().getBatches();
+    }
+
+    /**
+     * Reserve a batch of devices, responding with their connection details once they are all ready.
+     * <p/>
+     * Parameters: buildURL, count (default 1), memTotal, flashProject, flashPriority and any number of filter
+     * parameters given as group:label.
+     */
+    @RequirePOST
+    public HttpResponse doReserve(StaplerRequest req) throws IOException, InterruptedException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        int count = 1;
+        ArrayList<DeviceFilter> filters = new ArrayList<DeviceFilter>();
+        try {
+            if (req.getParameter("count") != null) {
+                count = Integer.parseInt(req.getParameter("count"));
+            }
+            String[] filterParams = req.getParameterValues("filter");
+            if (filterParams != null) {
+                for (String filter : filterParams) {
+                    filters.add(DeviceBatchManager.parseFilter(filter));
+                }
+            }
+            DeviceBatchManager.Batch batch = DeviceBatchManager.get().reserve(new TestdroidLogger(null), count,
+                    req.getParameter("buildURL"), req.getParameter("memTotal"), filters,
+                    req.getParameter("flashProject"), req.getParameter("flashPriority"));
+            return json(batch.toJSON());
+        } catch (IllegalArgumentException e) {
+            //includes NumberFormatException for the count
+            return HttpResponses.error(StaplerResponse.SC_BAD_REQUEST, e.getMessage());
+        }
+    }
+
+    /**
+     * Release every device in the batch given by the batch parameter.
+     */
+    @RequirePOST
+    public HttpResponse doRelease(StaplerRequest req) throws InterruptedException {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        String id = req.getParameter("batch");
+        if (id == null || DeviceBatchManager.get().release(new TestdroidLogger(null), id) == null) {
+            return HttpResponses.error(StaplerResponse.SC_NOT_FOUND, "No such batch: " + id);
+        }
+        return HttpResponses.ok();
+    }
+
+    private static HttpResponse json(final JSON json) {
+        return new HttpResponse() {
+            public void generateResponse(StaplerRequest req, StaplerResponse rsp, Object node) throws IOException {
+                rsp.setContentType("application/json;charset=UTF-8");
+                rsp.getWriter().print(json.toString());
+            }
+        };
+    }
+}
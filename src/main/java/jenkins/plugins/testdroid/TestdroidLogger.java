@@ -3,11 +3,47 @@ package jenkins.plugins.testdroid;
 import hudson.model.TaskListener;
 
 import java.io.Serializable;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
 
+/**
+ * Logs to the build console and the controller log.
+ * <p/>
+ * Messages at {@link Level#INFO} and above are written to the console with the "[Testdroid]" prefix. Every message is
+ * also written to the controller log, tagged with the correlation IDs set on this logger (build, session, device and
+ * flash run) so messages from concurrent builds can be told apart; console messages are logged at FINE there so they
+ * aren't duplicated by default. Format strings are only expanded when the message will actually be written.
+ */
 public class TestdroidLogger implements Serializable {
 
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOGGER = Logger.getLogger(TestdroidLogger.class.getPackage().getName());
+
+    public enum Level {
+        DEBUG(java.util.logging.Level.FINE, null),
+        INFO(java.util.logging.Level.FINE, ""),
+        WARN(java.util.logging.Level.WARNING, "[WARN] - "),
+        ERROR(java.util.logging.Level.SEVERE, "[ERROR] - ");
+
+        private final java.util.logging.Level controllerLevel;
+        //null if not written to the console
+        private final String consoleTag;
+
+        Level(java.util.logging.Level controllerLevel, String consoleTag) {
+            this.controllerLevel = controllerLevel;
+            this.consoleTag = consoleTag;
+        }
+    }
+
     private TaskListener listener;
 
+    private final Map<String, Object> context = new LinkedHashMap<String, Object>();
+
+    private transient Map<String, Throttle> throttles;
+
     public TestdroidLogger(TaskListener listener) {
         this.listener = listener;
     }
@@ -16,13 +52,153 @@ public class TestdroidLogger implements Serializable {
         return listener;
     }
 
+    /**
+     * Set a correlation ID included with every controller log message.
+     * @param key
+     * @param value ID, or null to remove it
+     * @return this logger
+     */
+    public TestdroidLogger with(String key, Object value) {
+        synchronized (context) {
+            if (value == null) {
+                context.remove(key);
+            } else {
+                context.put(key, value);
+            }
+        }
+        return this;
+    }
+
+    public TestdroidLogger withBuild(String build) {
+        return with("build", build);
+    }
+
+    public TestdroidLogger withSession(Long sessionId) {
+        return with("session", sessionId);
+    }
+
+    public TestdroidLogger withDevice(Long deviceId) {
+        return with("device", deviceId);
+    }
+
+    public TestdroidLogger withRun(Long runId) {
+        return with("run", runId);
+    }
+
+    public boolean isEnabled(Level level) {
+        return (level.consoleTag != null && listener != null) || LOGGER.isLoggable(level.controllerLevel);
+    }
+
+    public void debug(String format, Object... args) {
+        log(Level.DEBUG, null, format, args);
+    }
+
     public void info(String message) {
-        listener.getLogger().println("[Testdroid] - " + message);
+        log(Level.INFO, null, message);
+    }
+
+    public void info(String format, Object... args) {
+        log(Level.INFO, null, format, args);
+    }
+
+    public void warn(String message) {
+        log(Level.WARN, null, message);
+    }
+
+    public void warn(String format, Object... args) {
+        log(Level.WARN, null, format, args);
+    }
+
+    public void warn(Throwable thrown, String format, Object... args) {
+        log(Level.WARN, thrown, format, args);
     }
 
     public void error(String message) {
-        listener.getLogger().println("[Testdroid] - [ERROR] - " + message);
+        log(Level.ERROR, null, message);
     }
 
-    public void warn(String message) { listener.getLogger().println("[Testdroid] - [WARN] - " + message); }
+    public void error(String format, Object... args) {
+        log(Level.ERROR, null, format, args);
+    }
+
+    public void error(Throwable thrown, String format, Object... args) {
+        log(Level.ERROR, thrown, format, args);
+    }
+
+    /**
+     * Log a message that repeats while polling at most once per interval, noting how many were skipped.
+     * @param level
+     * @param key identifies the repeated message
+     * @param interval minimum milliseconds between messages with the same key
+     * @param format
+     * @param args
+     */
+    public void throttled(Level level, String key, long interval, String format, Object... args) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        int suppressed;
+        synchronized (context) {
+            if (throttles == null) {
+                throttles = new HashMap<String, Throttle>();
+            }
+            Throttle throttle = throttles.get(key);
+            if (throttle == null) {
+                throttle = new Throttle();
+                throttles.put(key, throttle);
+            } else if (now < throttle.next) {
+                throttle.suppressed++;
+                return;
+            }
+            suppressed = throttle.suppressed;
+            throttle.suppressed = 0;
+            throttle.next = now + interval;
+        }
+        String message = format(format, args);
+        if (suppressed > 0) {
+            message += String.format(" (%d similar message%s suppressed)", suppressed, suppressed == 1 ? "" : "s");
+        }
+        write(level, null, message);
+    }
+
+    public void log(Level level, Throwable thrown, String format, Object... args) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        write(level, thrown, format(format, args));
+    }
+
+    private void write(Level level, Throwable thrown, String message) {
+        if (level.consoleTag != null && listener != null) {
+            listener.getLogger().println("[Testdroid] - " + level.consoleTag + message);
+        }
+        if (LOGGER.isLoggable(level.controllerLevel)) {
+            String tagged;
+            synchronized (context) {
+                if (context.isEmpty()) {
+                    tagged = message;
+                } else {
+                    StringBuilder builder = new StringBuilder("[");
+                    for (Map.Entry<String, Object> entry : context.entrySet()) {
+                        if (builder.length() > 1) {
+                            builder.append(' ');
+                        }
+                        builder.append(entry.getKey()).append('=').append(entry.getValue());
+                    }
+                    tagged = builder.append("] ").append(message).toString();
+                }
+            }
+            LOGGER.log(level.controllerLevel, tagged, thrown);
+        }
+    }
+
+    private static String format(String format, Object... args) {
+        return args == null || args.length == 0 ? format : String.format(format, args);
+    }
+
+    private static class Throttle {
+        long next;
+        int suppressed;
+    }
 }
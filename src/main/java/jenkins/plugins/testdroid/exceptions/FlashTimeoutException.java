@@ -2,5 +2,6 @@ package jenkins.plugins.testdroid.exceptions;
 
 public class FlashTimeoutException extends Throwable {
     public FlashTimeoutException(String message) {
+        super(message);
     }
 }
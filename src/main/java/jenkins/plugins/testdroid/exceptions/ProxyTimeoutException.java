@@ -0,0 +1,9 @@
+package jenkins.plugins.testdroid.exceptions;
+
+import java.io.IOException;
+
+public class ProxyTimeoutException extends IOException {
+    public ProxyTimeoutException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,56 @@
+package jenkins.plugins.testdroid;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceHealthTrackerTest {
+
+    private static final long MINUTE = 60*1000;
+    private static final long HOUR = 60*MINUTE;
+
+    private final DeviceHealthTracker tracker = new DeviceHealthTracker();
+
+    @Test
+    public void repeatedFailuresQuarantine() {
+        assertFalse(tracker.recordFailure(1, "flame", DeviceHealthTracker.Failure.FLASH_FAILED, 0));
+        assertFalse(tracker.recordFailure(1, "flame", DeviceHealthTracker.Failure.FLASH_FAILED, 0));
+        assertTrue(tracker.recordFailure(1, "flame", DeviceHealthTracker.Failure.PROXY_TIMEOUT, 0));
+        assertTrue(tracker.isQuarantined(1, MINUTE));
+        assertFalse(tracker.isQuarantined(2, MINUTE));
+        assertFalse(tracker.isQuarantined(1, 15*MINUTE));
+    }
+
+    @Test
+    public void oldFailuresDecay() {
+        tracker.recordFailure(1, "flame", DeviceHealthTracker.Failure.FLASH_FAILED, 0);
+        tracker.recordFailure(1, "flame", DeviceHealthTracker.Failure.FLASH_FAILED, 0);
+        //the earlier failures have halved twice
+        assertFalse(tracker.recordFailure(1, "flame", DeviceHealthTracker.Failure.FLASH_FAILED, 2*HOUR));
+        assertFalse(tracker.isQuarantined(1, 2*HOUR));
+    }
+
+    @Test
+    public void repeatedQuarantinesLastLonger() {
+        long now = 0;
+        for (int i = 0; i < 3; i++) {
+            tracker.recordFailure(1, "flame", DeviceHealthTracker.Failure.FLASH_FAILED, now);
+        }
+        now += 15*MINUTE;
+        assertFalse(tracker.isQuarantined(1, now));
+        for (int i = 0; i < 3; i++) {
+            tracker.recordFailure(1, "flame", DeviceHealthTracker.Failure.FLASH_FAILED, now);
+        }
+        assertTrue(tracker.isQuarantined(1, now + 29*MINUTE));
+        assertFalse(tracker.isQuarantined(1, now + 30*MINUTE));
+    }
+
+    @Test
+    public void successClearsFailures() {
+        tracker.recordFailure(1, "flame", DeviceHealthTracker.Failure.FLASH_FAILED, 0);
+        tracker.recordFailure(1, "flame", DeviceHealthTracker.Failure.FLASH_FAILED, 0);
+        tracker.recordSuccess(1);
+        assertFalse(tracker.recordFailure(1, "flame", DeviceHealthTracker.Failure.FLASH_FAILED, 0));
+    }
+}
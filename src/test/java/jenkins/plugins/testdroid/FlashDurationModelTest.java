@@ -0,0 +1,50 @@
+package jenkins.plugins.testdroid;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class FlashDurationModelTest {
+
+    private static final long SECOND = 1000;
+    private static final long MINUTE = 60*SECOND;
+
+    @Test
+    public void needsEnoughSamples() {
+        assertNull(FlashDurationModel.getPrediction(null));
+        assertNull(FlashDurationModel.getPrediction(Arrays.asList(MINUTE, MINUTE, MINUTE, MINUTE)));
+    }
+
+    @Test
+    public void predictsMedianAndPercentileTimeout() {
+        List<Long> durations = new ArrayList<Long>();
+        for (int i = 1; i <= 20; i++) {
+            durations.add(i * MINUTE);
+        }
+        FlashDurationModel.Prediction prediction = FlashDurationModel.getPrediction(durations);
+        assertEquals(10 * MINUTE, prediction.getExpected());
+        assertEquals((long) (19 * MINUTE * 1.5), prediction.getTimeout());
+        assertEquals(20, prediction.getSamples());
+    }
+
+    @Test
+    public void learnedTimeoutHasFloor() {
+        FlashDurationModel.Prediction prediction = FlashDurationModel.getPrediction(Arrays.asList(
+                10 * SECOND, 10 * SECOND, 10 * SECOND, 10 * SECOND, 10 * SECOND));
+        assertEquals(5 * MINUTE, prediction.getTimeout());
+    }
+
+    @Test
+    public void pollsMoreOftenNearExpectedFinish() {
+        FlashDurationModel.Prediction prediction = new FlashDurationModel.Prediction(10 * MINUTE, 15 * MINUTE, 5);
+        assertEquals(60 * SECOND, prediction.getPollInterval(0));
+        assertEquals(30 * SECOND, prediction.getPollInterval(9 * MINUTE));
+        assertEquals(2 * SECOND, prediction.getPollInterval(10 * MINUTE - SECOND));
+        assertEquals(5 * SECOND, prediction.getPollInterval(11 * MINUTE));
+    }
+}
@@ -0,0 +1,129 @@
+package jenkins.plugins.testdroid;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class FlashSchedulerTest {
+
+    private static final String GROUP = "SIMs: 1";
+
+    private final FlashScheduler scheduler = new FlashScheduler();
+    private final TestdroidLogger logger = new TestdroidLogger(null);
+    private final List<String> acquired = Collections.synchronizedList(new ArrayList<String>());
+
+    @Test
+    public void groupKeyUsesConfiguredLabelGroup() {
+        List<DeviceFilter> filters = Arrays.asList(new DeviceFilter("SIMs", "1"), new DeviceFilter("Model", "Flame"));
+        assertEquals("Model: Flame", FlashScheduler.getGroupKey(filters, "model"));
+        assertEquals("Model: Flame", FlashScheduler.getGroupKey(filters.subList(1, 2), "Model"));
+    }
+
+    @Test
+    public void groupKeyFallsBackToAllFilters() {
+        List<DeviceFilter> filters = Arrays.asList(new DeviceFilter("SIMs", "1"), new DeviceFilter("Memory", "512"));
+        assertEquals("Memory: 512, SIMs: 1", FlashScheduler.getGroupKey(filters, "Model"));
+        assertEquals("Memory: 512, SIMs: 1", FlashScheduler.getGroupKey(filters, null));
+        assertEquals("all devices", FlashScheduler.getGroupKey(null, "Model"));
+    }
+
+    @Test(timeout = 10000)
+    public void unlimitedGroupNeverWaits() throws InterruptedException {
+        for (int i = 0; i < 10; i++) {
+            scheduler.acquire(GROUP, "a", 0, 0, logger);
+        }
+        assertEquals(0, scheduler.getQueueLength(GROUP));
+    }
+
+    @Test(timeout = 10000)
+    public void higherPriorityIsServedFirst() throws InterruptedException {
+        FlashScheduler.Slot held = scheduler.acquire(GROUP, "holder", 0, 1, logger);
+        Thread low = waitFor("low", 0, 1, 1);
+        Thread high = waitFor("high", 5, 1, 2);
+        held.release();
+        low.join();
+        high.join();
+        assertEquals(Arrays.asList("high", "low"), acquired);
+    }
+
+    @Test(timeout = 10000)
+    public void jobWithFewerFlashesIsServedFirst() throws InterruptedException {
+        FlashScheduler.Slot first = scheduler.acquire(GROUP, "busy", 0, 2, logger);
+        scheduler.acquire(GROUP, "busy", 0, 2, logger);
+        Thread busy = waitFor("busy", 0, 2, 1);
+        Thread idle = waitFor("idle", 0, 2, 2);
+        first.release();
+        idle.join();
+        //the busy job's second request only gets a slot once the idle job releases
+        busy.join();
+        assertEquals(Arrays.asList("idle", "busy"), acquired);
+    }
+
+    @Test(timeout = 10000)
+    public void equalRequestsAreServedInArrivalOrder() throws InterruptedException {
+        FlashScheduler.Slot held = scheduler.acquire(GROUP, "holder", 0, 1, logger);
+        Thread first = waitFor("first", 0, 1, 1);
+        Thread second = waitFor("second", 0, 1, 2);
+        held.release();
+        first.join();
+        second.join();
+        assertEquals(Arrays.asList("first", "second"), acquired);
+    }
+
+    @Test(timeout = 10000)
+    public void interruptedWaiterLeavesQueue() throws InterruptedException {
+        scheduler.acquire(GROUP, "holder", 0, 1, logger);
+        Thread waiter = waitFor("waiter", 0, 1, 1);
+        waiter.interrupt();
+        waiter.join();
+        assertEquals(0, scheduler.getQueueLength(GROUP));
+        assertEquals(Collections.<String>emptyList(), acquired);
+    }
+
+    @Test(timeout = 10000)
+    public void groupIsDroppedWhenLastWaiterLeaves() throws InterruptedException {
+        FlashScheduler.Slot slot = scheduler.acquire(GROUP, "holder", 0, 1, logger);
+        Thread waiter = waitFor("waiter", 0, 1, 1);
+        //the waiter is interrupted before it can take the released slot
+        synchronized (scheduler) {
+            //holding the lock, a waiting state means the waiter is in the scheduler's wait set
+            while (waiter.getState() != Thread.State.TIMED_WAITING) {
+                scheduler.wait(10);
+            }
+            waiter.interrupt();
+            slot.release();
+        }
+        waiter.join();
+        assertEquals(Collections.<String>emptyList(), acquired);
+        assertFalse(scheduler.hasGroup(GROUP));
+    }
+
+    /**
+     * Start a thread acquiring a slot for the job, which releases it straight away, and wait until it is queued.
+     */
+    private Thread waitFor(final String job, final int priority, final int limit, int queueLength)
+            throws InterruptedException {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    FlashScheduler.Slot slot = scheduler.acquire(GROUP, job, priority, limit, logger);
+                    acquired.add(job);
+                    slot.release();
+                } catch (InterruptedException e) {
+                    //left the queue
+                }
+            }
+        });
+        thread.start();
+        while (scheduler.getQueueLength(GROUP) < queueLength) {
+            Thread.sleep(10);
+        }
+        return thread;
+    }
+}
@@ -0,0 +1,55 @@
+package jenkins.plugins.testdroid;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptyHistogramHasNoPercentiles() {
+        assertEquals(0, new LatencyHistogram().getPercentile(50));
+    }
+
+    @Test
+    public void percentilesAreWithinBucketAccuracy() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long millis = 1; millis <= 100000; millis++) {
+            histogram.record(millis);
+        }
+        assertWithin(50000, histogram.getPercentile(50));
+        assertWithin(90000, histogram.getPercentile(90));
+        assertWithin(99000, histogram.getPercentile(99));
+        assertEquals(100000, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void percentilesNeverExceedMaximum() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1234);
+        assertEquals(1234, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void mergeMatchesRecordingEverything() {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        LatencyHistogram all = new LatencyHistogram();
+        for (long millis = 0; millis < 1000; millis++) {
+            (millis % 3 == 0 ? a : b).record(millis * 37);
+            all.record(millis * 37);
+        }
+        a.merge(b);
+        assertEquals(all.getCount(), a.getCount());
+        assertEquals(all.getMax(), a.getMax());
+        for (double percentile : new double[] {1, 50, 90, 99, 100}) {
+            assertEquals(all.getPercentile(percentile), a.getPercentile(percentile));
+        }
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected about " + expected + " but was " + actual,
+                Math.abs(actual - expected) <= expected * 0.05);
+    }
+}
@@ -0,0 +1,127 @@
+package jenkins.plugins.testdroid;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ProvisioningHistoryTest {
+
+    private File log;
+
+    @Before
+    public void createLog() throws IOException {
+        log = File.createTempFile("testdroid-provisioning", ".log");
+    }
+
+    @After
+    public void deleteLog() {
+        log.delete();
+        new File(log.getPath() + ".1").delete();
+    }
+
+    @Test
+    public void eventsAreReadBack() {
+        ProvisioningHistory history = new ProvisioningHistory(log);
+        history.append(event("a", ProvisioningEvent.Outcome.SUCCESS, 1000, 0, 7));
+        history.append(event("a", ProvisioningEvent.Outcome.NO_DEVICE, 2000, 1, -1));
+        history.append(event("b", ProvisioningEvent.Outcome.SUCCESS, 3000, 1, 7));
+
+        ProvisioningHistory reloaded = new ProvisioningHistory(log);
+        List<ProvisioningHistory.Stats> jobs = reloaded.getJobStats();
+        assertEquals(2, jobs.size());
+        assertEquals("a", jobs.get(0).getName());
+        assertEquals(2, jobs.get(0).getAttempts());
+        assertEquals(1, jobs.get(0).getSuccesses());
+        assertEquals(1, jobs.get(1).getAttempts());
+        assertEquals(3, reloaded.getOverall().getAttempts());
+        assertEquals(2, reloaded.getOverall().getSuccesses());
+        assertEquals(3000, reloaded.getOverall().getTimeToSession().getMax());
+        assertEquals(1, reloaded.getDeviceUsage().size());
+        assertEquals(2, reloaded.getDeviceUsage().get(0).getSessions());
+    }
+
+    @Test
+    public void partialRecordIsDiscarded() throws IOException {
+        ProvisioningHistory history = new ProvisioningHistory(log);
+        history.append(event("a", ProvisioningEvent.Outcome.SUCCESS, 1000, 0, 1));
+        history.append(event("a", ProvisioningEvent.Outcome.SUCCESS, 1000, 0, 1));
+        long intact = log.length();
+        byte[] record = ProvisioningHistory.encode(event("a", ProvisioningEvent.Outcome.SUCCESS, 1000, 0, 1));
+        append(Arrays.copyOf(record, record.length / 2));
+
+        ProvisioningHistory reloaded = new ProvisioningHistory(log);
+        assertEquals(2, reloaded.getOverall().getAttempts());
+        assertEquals(intact, log.length());
+
+        //records appended after the damage are still read
+        reloaded.append(event("a", ProvisioningEvent.Outcome.SUCCESS, 1000, 0, 1));
+        assertEquals(3, new ProvisioningHistory(log).getOverall().getAttempts());
+    }
+
+    @Test
+    public void unreadableRecordIsSkipped() throws IOException {
+        ProvisioningHistory history = new ProvisioningHistory(log);
+        history.append(event("a", ProvisioningEvent.Outcome.SUCCESS, 1000, 0, 1));
+        byte[] record = ProvisioningHistory.encode(event("a", ProvisioningEvent.Outcome.SUCCESS, 1000, 0, 1));
+        //unknown version
+        record[4] = 99;
+        append(record);
+        history.append(event("b", ProvisioningEvent.Outcome.SUCCESS, 1000, 0, 1));
+
+        ProvisioningHistory reloaded = new ProvisioningHistory(log);
+        assertEquals(2, reloaded.getOverall().getAttempts());
+        assertEquals(2, reloaded.getJobStats().size());
+    }
+
+    @Test
+    public void statsAreSnapshots() {
+        ProvisioningHistory history = new ProvisioningHistory(log);
+        history.append(event("a", ProvisioningEvent.Outcome.SUCCESS, 1000, 0, 1));
+        ProvisioningHistory.Stats job = history.getJobStats().get(0);
+        ProvisioningHistory.Stats filters = history.getFilterStats().get(0);
+        history.append(event("a", ProvisioningEvent.Outcome.SUCCESS, 5000, 0, 1));
+
+        assertEquals(1, job.getAttempts());
+        assertEquals(1000, job.getTimeToSession().getMax());
+        assertEquals(1, filters.getAttempts());
+        assertEquals(2, history.getJobStats().get(0).getAttempts());
+    }
+
+    @Test
+    public void invalidLengthIsDiscarded() throws IOException {
+        ProvisioningHistory history = new ProvisioningHistory(log);
+        history.append(event("a", ProvisioningEvent.Outcome.SUCCESS, 1000, 0, 1));
+        long intact = log.length();
+        append(new byte[] {(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 1, 2, 3});
+
+        assertEquals(1, new ProvisioningHistory(log).getOverall().getAttempts());
+        assertEquals(intact, log.length());
+    }
+
+    private void append(byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(log, true);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static ProvisioningEvent event(String job, ProvisioningEvent.Outcome outcome, long totalTime, int flashes,
+                                           long deviceId) {
+        ProvisioningEvent event = new ProvisioningEvent(System.currentTimeMillis(), job);
+        event.setFilters("SIMs: 1");
+        event.restore(0, 0, 0, 0, totalTime, flashes, 0);
+        event.setDeviceId(deviceId);
+        event.setOutcome(outcome);
+        return event;
+    }
+}